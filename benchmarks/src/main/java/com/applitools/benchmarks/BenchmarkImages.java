@@ -0,0 +1,166 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Creates the synthetic screenshots the benchmarks run on. The images are
+ * deterministic, so results are comparable between runs.
+ */
+final class BenchmarkImages {
+
+    /**
+     * The screenshot sizes benchmarked, by name.
+     */
+    static final String FULL_HD = "1080p";
+    static final String UHD = "4k";
+    static final String FULL_PAGE = "fullpage";
+
+    // Changes are made in tiles of this size, which is roughly the size of
+    // a UI control.
+    private static final int CHANGE_TILE_SIZE = 32;
+
+    private static final long SEED = 0x5EED;
+
+    private BenchmarkImages() {}
+
+    /**
+     * @param imageSize One of {@link #FULL_HD}, {@link #UHD} or {@link
+     *                  #FULL_PAGE}.
+     * @return The width and height of the screenshot.
+     */
+    static int[] getDimensions(String imageSize) {
+        if (FULL_HD.equals(imageSize)) {
+            return new int[] {1920, 1080};
+        }
+        if (UHD.equals(imageSize)) {
+            return new int[] {3840, 2160};
+        }
+        if (FULL_PAGE.equals(imageSize)) {
+            return new int[] {1280, 20000};
+        }
+        throw new IllegalArgumentException("Unknown image size: "
+                + imageSize);
+    }
+
+    /**
+     * Creates an image which looks like a screenshot of a web page: a flat
+     * background, a header, lines of "text" and some colorful pictures.
+     * @param imageSize One of {@link #FULL_HD}, {@link #UHD} or {@link
+     *                  #FULL_PAGE}.
+     * @return The screenshot.
+     */
+    static BufferedImage createScreenshot(String imageSize) {
+        int[] dimensions = getDimensions(imageSize);
+        int width = dimensions[0];
+        int height = dimensions[1];
+        Random random = new Random(SEED);
+
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setColor(new Color(0x2C3E50));
+            graphics.fillRect(0, 0, width, 60);
+
+            int margin = width / 10;
+            int y = 100;
+            while (y < height) {
+                if (random.nextInt(8) == 0) {
+                    // A picture.
+                    int pictureHeight = 150 + random.nextInt(200);
+                    drawPicture(graphics, random, margin, y,
+                            width - 2 * margin, pictureHeight);
+                    y += pictureHeight + 30;
+                    continue;
+                }
+
+                // A line of words.
+                graphics.setColor(new Color(0x333333));
+                int x = margin;
+                while (x < width - margin) {
+                    int wordWidth = 15 + random.nextInt(60);
+                    graphics.fillRect(x, y, Math.min(wordWidth,
+                            width - margin - x), 10);
+                    x += wordWidth + 8;
+                }
+                y += 22;
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        return image;
+    }
+
+    /**
+     * Creates a copy of an image in which a portion of the area was changed.
+     * @param source The image to copy.
+     * @param changeRatio The portion of the image area to change, between 0
+     *                    and 1.
+     * @return The changed copy.
+     */
+    static BufferedImage createChanged(BufferedImage source,
+                                       double changeRatio) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Random random = new Random(SEED + 1);
+
+        BufferedImage target = new BufferedImage(width, height,
+                source.getType());
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.drawImage(source, 0, 0, null);
+
+            int tileColumnsCount = (width + CHANGE_TILE_SIZE - 1)
+                    / CHANGE_TILE_SIZE;
+            int tileRowsCount = (height + CHANGE_TILE_SIZE - 1)
+                    / CHANGE_TILE_SIZE;
+            int tilesCount = tileColumnsCount * tileRowsCount;
+            int changedTilesCount = (int) Math.round(changeRatio * tilesCount);
+
+            // Partial Fisher-Yates shuffle, so each tile is changed once.
+            int[] tiles = new int[tilesCount];
+            for (int i = 0; i < tilesCount; ++i) {
+                tiles[i] = i;
+            }
+            for (int i = 0; i < changedTilesCount; ++i) {
+                int j = i + random.nextInt(tilesCount - i);
+                int tile = tiles[j];
+                tiles[j] = tiles[i];
+                tiles[i] = tile;
+
+                graphics.setColor(new Color(random.nextInt(0x1000000)));
+                graphics.fillRect((tile % tileColumnsCount) * CHANGE_TILE_SIZE,
+                        (tile / tileColumnsCount) * CHANGE_TILE_SIZE,
+                        CHANGE_TILE_SIZE, CHANGE_TILE_SIZE);
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        return target;
+    }
+
+    private static void drawPicture(Graphics2D graphics, Random random,
+                                    int x, int y, int width, int height) {
+        // Horizontal stripes of slightly varying color, similar to a photo
+        // in the amount of detail PNG has to encode.
+        int baseRgb = random.nextInt(0x1000000);
+        for (int row = 0; row < height; row += 2) {
+            int noise = random.nextInt(16);
+            graphics.setColor(new Color(
+                    ((baseRgb >> 16) & 0xFF) ^ noise,
+                    ((baseRgb >> 8) & 0xFF) ^ noise,
+                    (baseRgb & 0xFF) ^ noise));
+            graphics.fillRect(x, y + row, width, 2);
+        }
+    }
+}
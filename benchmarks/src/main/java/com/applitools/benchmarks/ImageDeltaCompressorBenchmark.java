@@ -0,0 +1,68 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.benchmarks;
+
+import com.applitools.utils.ImageDeltaCompressor;
+import com.applitools.utils.ImageUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ImageDeltaCompressor#compressByRawBlocks} by block
+ * size, screenshot size and the portion of the screenshot which changed.
+ * Run with {@code -prof gc} for the allocation rate. The output sizes are
+ * printed by {@link OutputSizeReport}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ImageDeltaCompressorBenchmark {
+
+    @Param({"10", "20", "50"})
+    public int blockSize;
+
+    @Param({BenchmarkImages.FULL_HD, BenchmarkImages.UHD,
+            BenchmarkImages.FULL_PAGE})
+    public String imageSize;
+
+    @Param({"0", "0.01", "0.1", "0.5"})
+    public double changeRatio;
+
+    private BufferedImage source;
+    private BufferedImage target;
+    private byte[] targetEncoded;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = BenchmarkImages.createScreenshot(imageSize);
+        target = BenchmarkImages.createChanged(source, changeRatio);
+        targetEncoded = ImageUtils.encodeAsPng(target);
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] compressSequential() throws IOException {
+        return ImageDeltaCompressor.compressByRawBlocks(target, targetEncoded,
+                source, blockSize);
+    }
+
+    @Benchmark
+    public byte[] compressParallel() throws IOException {
+        return ImageDeltaCompressor.compressByRawBlocks(target, targetEncoded,
+                source, blockSize, pool, pool.getParallelism());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.benchmarks;
+
+import com.applitools.utils.CompressionProfile;
+import com.applitools.utils.ImageUtils;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link ImageUtils#encodeAsPng} by screenshot size, against
+ * ImageIO's PNG writer as a baseline. Run with
+ * {@code -prof gc} for the allocation rate. The output sizes are printed
+ * by {@link OutputSizeReport}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ImageUtilsBenchmark {
+
+    @Param({BenchmarkImages.FULL_HD, BenchmarkImages.UHD,
+            BenchmarkImages.FULL_PAGE})
+    public String imageSize;
+
+    private BufferedImage image;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = BenchmarkImages.createScreenshot(imageSize);
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public byte[] encodeAsPng() {
+        return ImageUtils.encodeAsPng(image);
+    }
+
+    @Benchmark
+    public byte[] encodeAsPngFastest() {
+        return ImageUtils.encodeAsPng(image, CompressionProfile.FASTEST);
+    }
+
+    @Benchmark
+    public byte[] encodeAsPngParallel() {
+        return ImageUtils.encodeAsPng(image, CompressionProfile.BALANCED,
+                pool, pool.getParallelism());
+    }
+
+    @Benchmark
+    public byte[] encodeWithImageIO() throws IOException {
+        ByteArrayOutputStream pngBytesStream = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", pngBytesStream);
+        return pngBytesStream.toByteArray();
+    }
+}
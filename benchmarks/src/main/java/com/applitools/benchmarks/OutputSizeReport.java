@@ -0,0 +1,64 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.benchmarks;
+
+import com.applitools.utils.CompressionProfile;
+import com.applitools.utils.ImageDeltaCompressor;
+import com.applitools.utils.ImageUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Prints the output sizes for the parameters of {@link
+ * ImageDeltaCompressorBenchmark} and {@link ImageUtilsBenchmark}. The
+ * output is deterministic, so it is computed once instead of per benchmark
+ * iteration.
+ */
+public class OutputSizeReport {
+
+    private static final String[] IMAGE_SIZES = {BenchmarkImages.FULL_HD,
+            BenchmarkImages.UHD, BenchmarkImages.FULL_PAGE};
+    private static final int[] BLOCK_SIZES = {10, 20, 50};
+    private static final double[] CHANGE_RATIOS = {0, 0.01, 0.1, 0.5};
+
+    public static void main(String[] args) throws IOException {
+        System.out.printf("%-10s %-10s %12s%n", "imageSize", "profile",
+                "pngBytes");
+        for (String imageSize : IMAGE_SIZES) {
+            BufferedImage image = BenchmarkImages.createScreenshot(imageSize);
+            System.out.printf("%-10s %-10s %12d%n", imageSize, "default",
+                    ImageUtils.encodeAsPng(image).length);
+            System.out.printf("%-10s %-10s %12d%n", imageSize, "fastest",
+                    ImageUtils.encodeAsPng(image,
+                            CompressionProfile.FASTEST).length);
+            ByteArrayOutputStream imageIoBytes = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", imageIoBytes);
+            System.out.printf("%-10s %-10s %12d%n", imageSize, "imageio",
+                    imageIoBytes.size());
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %10s %12s %12s %12s%n", "imageSize",
+                "blockSize", "changeRatio", "pngBytes", "deltaBytes");
+        for (String imageSize : IMAGE_SIZES) {
+            BufferedImage source = BenchmarkImages.createScreenshot(imageSize);
+            for (double changeRatio : CHANGE_RATIOS) {
+                BufferedImage target = BenchmarkImages.createChanged(source,
+                        changeRatio);
+                byte[] targetEncoded = ImageUtils.encodeAsPng(target);
+                for (int blockSize : BLOCK_SIZES) {
+                    byte[] compressed =
+                            ImageDeltaCompressor.compressByRawBlocks(target,
+                                    targetEncoded, source, blockSize);
+                    System.out.printf("%-10s %10d %12s %12d %12d%n",
+                            imageSize, blockSize, changeRatio,
+                            targetEncoded.length, compressed.length);
+                }
+            }
+        }
+    }
+}
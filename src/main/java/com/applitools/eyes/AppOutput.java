@@ -2,34 +2,63 @@ package com.applitools.eyes;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * An application output (title, image, etc).
  */
-@JsonIgnoreProperties({"screenshot64"})
+@JsonIgnoreProperties({"screenshot"})
 class AppOutput {
 
+    /**
+     * Writes the screenshot's bytes to a request, so they don't have to be
+     * staged in an array first.
+     */
+    interface ScreenshotWriter {
+        /**
+         * @param stream The stream to which the screenshot's bytes are
+         *               written. Not closed by this method.
+         * @throws IOException If there was a problem writing to the stream.
+         */
+        void writeTo(OutputStream stream) throws IOException;
+    }
+
     /**
      * The title of the screen of the application being captured.
      */
     private final String title;
-    private final String screenshot64;
+    // Sent as is, after the JSON of the match data.
+    private final ScreenshotWriter screenshot;
+
+    /**
+     * @param title      The title of the window.
+     * @param screenshot The screenshot's bytes (the bytes can be in either
+     *                   compressed or uncompressed form).
+     */
+    public AppOutput(String title, final byte[] screenshot) {
+        this(title, new ScreenshotWriter() {
+            public void writeTo(OutputStream stream) throws IOException {
+                stream.write(screenshot);
+            }
+        });
+    }
 
     /**
-     * @param title        The title of the window.
-     * @param screenshot64 Base64 encoding of the screenshot's bytes (the
-     *                     byte can be in either in compressed or
-     *                     uncompressed form)
+     * @param title      The title of the window.
+     * @param screenshot Writes the screenshot's bytes (in either compressed
+     *                   or uncompressed form) when the output is sent.
      */
-    public AppOutput(String title, String screenshot64) {
+    public AppOutput(String title, ScreenshotWriter screenshot) {
         this.title = title;
-        this.screenshot64 = screenshot64;
+        this.screenshot = screenshot;
     }
 
     public String getTitle() {
         return title;
     }
 
-    public String getScreenshot64() {
-        return screenshot64;
+    public ScreenshotWriter getScreenshot() {
+        return screenshot;
     }
 }
\ No newline at end of file
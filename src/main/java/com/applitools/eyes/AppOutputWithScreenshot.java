@@ -4,7 +4,7 @@
 package com.applitools.eyes;
 
 class AppOutputWithScreenshot {
-    private final AppOutput appOutput;
+    private AppOutput appOutput;
     private final EyesScreenshot screenshot;
 
     public AppOutputWithScreenshot(AppOutput appOutput,
@@ -13,10 +13,39 @@ class AppOutputWithScreenshot {
         this.screenshot = screenshot;
     }
 
+    /**
+     * Creates an output whose app output is created on the first call to
+     * {@link #getAppOutput()} (see {@link #createAppOutput()}).
+     *
+     * @param screenshot The screenshot.
+     */
+    protected AppOutputWithScreenshot(EyesScreenshot screenshot) {
+        this(null, screenshot);
+    }
+
+    /**
+     * @return The app output, which is created on the first call if it
+     * wasn't given. Outputs which are only inspected by their screenshot
+     * (e.g., captures which turn out identical to the previous one) thus
+     * never compress it.
+     */
     public AppOutput getAppOutput() {
+        if (appOutput == null) {
+            appOutput = createAppOutput();
+        }
         return appOutput;
     }
 
+    /**
+     * Creates the app output (i.e., compresses the screenshot) if it wasn't
+     * given on construction.
+     *
+     * @return The app output.
+     */
+    protected AppOutput createAppOutput() {
+        throw new IllegalStateException("No app output");
+    }
+
     public EyesScreenshot getScreenshot() {
         return screenshot;
     }
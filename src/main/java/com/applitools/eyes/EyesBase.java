@@ -1,16 +1,32 @@
 package com.applitools.eyes;
 
 import com.applitools.utils.ArgumentGuard;
+import com.applitools.utils.CompressionProfile;
+import com.applitools.utils.DirtyBlockMap;
 import com.applitools.utils.ImageDeltaCompressor;
+import com.applitools.utils.ImagePool;
 import com.applitools.utils.ImageUtils;
-import org.apache.commons.codec.binary.Base64;
+import com.applitools.utils.PixelStore;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Applitools Eyes Base for Java API .
@@ -18,6 +34,10 @@ import java.util.Queue;
 abstract class EyesBase {
 
     private static final int DEFAULT_MATCH_TIMEOUT = 2; // Seconds
+    private static final int DEFAULT_PARALLEL_PNG_THRESHOLD = 4000000;
+    private static final int DEFAULT_MAX_PENDING_CHECKPOINTS = 3;
+    private static final int DEFAULT_STABILIZATION_INTERVAL = 100; // Ms
+    private static final int DEFAULT_STABILIZATION_TIMEOUT = 2000; // Ms
     protected static final int USE_DEFAULT_TIMEOUT = -1;
 
     public static final String DEFAULT_CHARSET_NAME = "UTF-8";
@@ -29,7 +49,11 @@ abstract class EyesBase {
     protected RunningSession runningSession;
     protected SessionStartInfo sessionStartInfo;
     protected RectangleSize viewportSize;
-    protected EyesScreenshot lastScreenshot;
+    // Updated by asynchronous checkpoints, on the checkpoints thread. Only
+    // replaced while holding lastScreenshotLock, which triggers hold while
+    // they use it.
+    protected volatile EyesScreenshot lastScreenshot;
+    private final Object lastScreenshotLock = new Object();
 
     // Will be checked <b>before</b> any argument validation. If true,
     // all method will immediately return without performing any action.
@@ -50,6 +74,38 @@ abstract class EyesBase {
     private String parentBranchName;
     private FailureReports failureReports;
     private final Queue<Trigger> userInputs;
+    private ExecutorService compressionExecutor;
+    private int compressionParallelism;
+    private int parallelPngThreshold;
+    private CompressionProfile compressionProfile;
+    private ReferenceImageCache referenceImageCache;
+    private ImagePool imagePool;
+    private ScreenshotStorage screenshotStorage;
+    private int maxPendingCheckpoints;
+    private RetryPolicy matchRetryPolicy;
+    private int stableFramesCount;
+    private int stabilizationInterval;
+    private int stabilizationTimeout;
+    private boolean pipelineMatchRetries;
+    // Asynchronous checkpoints are compressed and matched in order, on a
+    // single thread.
+    private ExecutorService checkpointExecutor;
+    private Semaphore checkpointPermits;
+    private final List<Future<MatchResult>> pendingCheckpoints;
+    // The first failure (other than a mismatch) of an asynchronous
+    // checkpoint, thrown by close().
+    private Throwable checkpointFailure;
+    // The size and PNG length of the last screenshot which was encoded, which
+    // estimate the PNG length of the next screenshot of the same size.
+    private final Object encodedLengthLock = new Object();
+    private int lastEncodedWidth;
+    private int lastEncodedHeight;
+    private int lastEncodedLength;
+    // The number of checkpoints performed since the test was opened.
+    private int checkpointsCount;
+    // Identifies the current (synchronous) checkpoint in the reference
+    // image cache. Asynchronous checkpoints carry their own keys.
+    private String checkpointKey;
 
     // Used for automatic save of a test run.
     private boolean saveNewTests, saveFailedTests;
@@ -64,6 +120,7 @@ abstract class EyesBase {
 
         if (isDisabled) {
             userInputs = null;
+            pendingCheckpoints = null;
             return;
         }
 
@@ -84,6 +141,26 @@ abstract class EyesBase {
         saveFailedTests = false;
         agentId = null;
         lastScreenshot = null;
+        compressionExecutor = null;
+        compressionParallelism = 1;
+        parallelPngThreshold = DEFAULT_PARALLEL_PNG_THRESHOLD;
+        compressionProfile = CompressionProfile.SMALLEST;
+        referenceImageCache = null;
+        imagePool = null;
+        screenshotStorage = ScreenshotStorage.HEAP;
+        maxPendingCheckpoints = DEFAULT_MAX_PENDING_CHECKPOINTS;
+        matchRetryPolicy = RetryPolicy.DEFAULT;
+        stableFramesCount = 0;
+        stabilizationInterval = DEFAULT_STABILIZATION_INTERVAL;
+        stabilizationTimeout = DEFAULT_STABILIZATION_TIMEOUT;
+        pipelineMatchRetries = false;
+        checkpointExecutor = null;
+        checkpointPermits = null;
+        pendingCheckpoints = new ArrayList<Future<MatchResult>>();
+        checkpointFailure = null;
+        lastEncodedWidth = 0;
+        lastEncodedHeight = 0;
+        lastEncodedLength = 0;
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -254,7 +331,9 @@ abstract class EyesBase {
 
     /**
      * Sets the maximal time (in seconds) a match operation tries to perform
-     * a match.
+     * a match. Asynchronous checkpoints (see {@link
+     * #checkWindowBaseAsync(RegionProvider, String, boolean)}) are matched
+     * once, without retries, so the timeout doesn't apply to them.
      *
      * @param seconds Total number of seconds to wait for a match.
      */
@@ -282,6 +361,315 @@ abstract class EyesBase {
         return matchTimeout;
     }
 
+    /**
+     * Sets the executor on which screenshots are compressed. When set, each
+     * screenshot's compression is split into partitions which are compressed
+     * concurrently. Screenshots larger than the parallel PNG threshold (see
+     * {@link #setParallelPngThreshold(int)}) are also PNG encoded in bands
+     * of rows concurrently.
+     *
+     * @param executorService The executor to use (e.g., a {@link
+     *                        java.util.concurrent.ForkJoinPool}), or {@code
+     *                        null} to compress on the calling thread (the
+     *                        default).
+     * @param parallelism     The number of partitions each color channel is
+     *                        split into.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setCompressionExecutor(ExecutorService executorService,
+                                      int parallelism) {
+        ArgumentGuard.greaterThanZero(parallelism, "parallelism");
+
+        this.compressionExecutor = executorService;
+        this.compressionParallelism = parallelism;
+    }
+
+    /**
+     * @return The executor on which screenshots are compressed, or {@code
+     * null} if screenshots are compressed on the calling thread.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public ExecutorService getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    /**
+     * @return The number of partitions each color channel is split into
+     * when compressing on the compression executor.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getCompressionParallelism() {
+        return compressionParallelism;
+    }
+
+    /**
+     * Sets the size from which screenshots are PNG encoded in parallel on
+     * the compression executor (if set). Smaller screenshots are encoded on
+     * the calling thread, since splitting them isn't worth the overhead.
+     *
+     * @param pixels The number of pixels above which screenshots are
+     *               encoded in parallel. The default is 4,000,000 (about
+     *               twice a 1080p screenshot).
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setParallelPngThreshold(int pixels) {
+        ArgumentGuard.greaterThanOrEqualToZero(pixels, "pixels");
+        this.parallelPngThreshold = pixels;
+    }
+
+    /**
+     * @return The number of pixels above which screenshots are PNG encoded
+     * in parallel on the compression executor.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getParallelPngThreshold() {
+        return parallelPngThreshold;
+    }
+
+    /**
+     * Sets the profile by which screenshots are compressed, trading CPU
+     * time for upload size. The default is {@link
+     * CompressionProfile#SMALLEST}.
+     *
+     * @param compressionProfile The compression profile to use (e.g.,
+     *                           {@link CompressionProfile#FASTEST}).
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setCompressionProfile(CompressionProfile compressionProfile) {
+        ArgumentGuard.notNull(compressionProfile, "compressionProfile");
+        this.compressionProfile = compressionProfile;
+    }
+
+    /**
+     * @return The profile by which screenshots are compressed.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public CompressionProfile getCompressionProfile() {
+        return compressionProfile;
+    }
+
+    /**
+     * Sets a cache of images which were already uploaded to the server. When
+     * set, the first screenshot of a checkpoint which has no previous
+     * screenshot in the session (e.g., the first checkpoint of a test) is
+     * uploaded as a delta from the image uploaded for the same checkpoint by
+     * a previous run, if it's in the cache. To compress the first
+     * screenshots of a test run in a new process (e.g., a CI build), the
+     * cache must persist its images between processes.
+     *
+     * @param referenceImageCache The cache to use, or {@code null} to only
+     *                            compress by the previous screenshot in the
+     *                            session (the default).
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setReferenceImageCache(
+            ReferenceImageCache referenceImageCache) {
+        this.referenceImageCache = referenceImageCache;
+    }
+
+    /**
+     * @return The cache of images which were already uploaded to the server,
+     * or {@code null} if not set.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public ReferenceImageCache getReferenceImageCache() {
+        return referenceImageCache;
+    }
+
+    /**
+     * Sets a pool of images from which screenshot images are allocated, and
+     * to which the images of the previous screenshot are returned once it's
+     * superseded. Useful when many screenshots of the same size are taken
+     * (e.g., of a fixed viewport), since screenshot images are large and
+     * would otherwise be allocated anew for each screenshot.
+     * <p>
+     * Images of screenshots which were superseded, or whose pixels were
+     * moved to a store (see {@link #setScreenshotStorage(ScreenshotStorage)}),
+     * including images previously returned by {@code getImage()} of such
+     * screenshots, must not be used once a pool is set.
+     *
+     * @param imagePool The pool to use, or {@code null} to allocate a new
+     *                  image for each screenshot (the default).
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setImagePool(ImagePool imagePool) {
+        this.imagePool = imagePool;
+    }
+
+    /**
+     * @return The pool from which screenshot images are allocated, or
+     * {@code null} if not set. SDKs should decode and crop screenshots into
+     * images from this pool (see {@link ImageUtils#imageFromBytes(byte[],
+     * ImagePool)} and {@link ImageUtils#getImagePart(BufferedImage, Region,
+     * ImagePool)}).
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public ImagePool getImagePool() {
+        return imagePool;
+    }
+
+    /**
+     * Sets where the pixels of screenshots which are retained after their
+     * match are kept (i.e., the previous screenshot, which the next
+     * screenshot is compressed by, and the screenshot of the returned match
+     * result). With many concurrent sessions, keeping the pixels off the
+     * heap (or compressed) avoids holding a full screenshot image per session
+     * for the session's lifetime. The images of such screenshots are rebuilt
+     * from their pixels when requested.
+     *
+     * @param screenshotStorage The storage to use. The default is {@link
+     *                          ScreenshotStorage#HEAP}.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setScreenshotStorage(ScreenshotStorage screenshotStorage) {
+        ArgumentGuard.notNull(screenshotStorage, "screenshotStorage");
+        this.screenshotStorage = screenshotStorage;
+    }
+
+    /**
+     * @return Where the pixels of the previous screenshot are kept.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public ScreenshotStorage getScreenshotStorage() {
+        return screenshotStorage;
+    }
+
+    /**
+     * Sets the maximal number of asynchronous checkpoints (see {@code
+     * checkWindowBaseAsync}) which may be pending at once. Checking a window
+     * when that many checkpoints are pending blocks until the oldest of
+     * them completes.
+     *
+     * @param maxPendingCheckpoints The maximal number of pending
+     *                              checkpoints. The default is 3.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setMaxPendingCheckpoints(int maxPendingCheckpoints) {
+        ArgumentGuard.greaterThanZero(maxPendingCheckpoints,
+                "maxPendingCheckpoints");
+        ArgumentGuard.isValidState(pendingCheckpoints.isEmpty(),
+                "Checkpoints are pending");
+        this.maxPendingCheckpoints = maxPendingCheckpoints;
+        checkpointPermits = null;
+    }
+
+    /**
+     * @return The maximal number of asynchronous checkpoints which may be
+     * pending at once.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getMaxPendingCheckpoints() {
+        return maxPendingCheckpoints;
+    }
+
+    /**
+     * Sets when the window is captured again while retrying a match which
+     * failed, until the match timeout expires (see {@link
+     * #setMatchTimeout(int)}).
+     *
+     * @param matchRetryPolicy The policy to use. The default is {@link
+     *                         RetryPolicy#DEFAULT}.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setMatchRetryPolicy(RetryPolicy matchRetryPolicy) {
+        ArgumentGuard.notNull(matchRetryPolicy, "matchRetryPolicy");
+        this.matchRetryPolicy = matchRetryPolicy;
+        if (matchWindowTask != null) {
+            matchWindowTask.setRetryPolicy(matchRetryPolicy);
+        }
+    }
+
+    /**
+     * @return The policy by which matches are retried.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public RetryPolicy getMatchRetryPolicy() {
+        return matchRetryPolicy;
+    }
+
+    /**
+     * Sets whether checkpoints capture the window until it stops changing
+     * (e.g., until an animation ends), before the first match attempt. Every
+     * capture is compared to the previous one locally, so this saves match
+     * attempts which would have failed on intermediate frames. Disabled by
+     * default.
+     *
+     * @param stableFramesCount The number of consecutive identical captures
+     *                          after which the window is considered stable
+     *                          (e.g., 3), or 0 to disable stabilization.
+     * @param interval          The time between captures, in milliseconds.
+     *                          The default is 100.
+     * @param timeout           The maximal time to wait for the window to
+     *                          become stable, in milliseconds. The default
+     *                          is 2000.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setStabilization(int stableFramesCount, int interval,
+                                 int timeout) {
+        ArgumentGuard.greaterThanOrEqualToZero(stableFramesCount,
+                "stableFramesCount");
+        ArgumentGuard.greaterThanOrEqualToZero(interval, "interval");
+        ArgumentGuard.greaterThanOrEqualToZero(timeout, "timeout");
+        this.stableFramesCount = stableFramesCount;
+        this.stabilizationInterval = interval;
+        this.stabilizationTimeout = timeout;
+        if (matchWindowTask != null) {
+            matchWindowTask.setStabilization(stableFramesCount, interval,
+                    timeout);
+        }
+    }
+
+    /**
+     * @return The number of consecutive identical captures after which the
+     * window is considered stable, or 0 if stabilization is disabled.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getStableFramesCount() {
+        return stableFramesCount;
+    }
+
+    /**
+     * @return The time between stabilization captures, in milliseconds.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getStabilizationInterval() {
+        return stabilizationInterval;
+    }
+
+    /**
+     * @return The maximal time to wait for the window to become stable, in
+     * milliseconds.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public int getStabilizationTimeout() {
+        return stabilizationTimeout;
+    }
+
+    /**
+     * Sets whether match retries are pipelined: the window is captured (and
+     * fingerprinted) for the next retry while the previous match request
+     * is in flight, so each retry costs the longer of the capture and the
+     * match (i.e., compression and round trip) rather than both. A capture
+     * is discarded if the match in flight succeeds. Disabled by default.
+     *
+     * @param pipelineMatchRetries Whether match retries are pipelined.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public void setPipelineMatchRetries(boolean pipelineMatchRetries) {
+        this.pipelineMatchRetries = pipelineMatchRetries;
+        if (matchWindowTask != null) {
+            matchWindowTask.setPipelined(pipelineMatchRetries);
+        }
+    }
+
+    /**
+     * @return Whether match retries are pipelined.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    public boolean getPipelineMatchRetries() {
+        return pipelineMatchRetries;
+    }
+
     /**
      * Set whether or not new tests are saved by default.
      *
@@ -479,6 +867,9 @@ abstract class EyesBase {
      * @throws TestFailedException if a mismatch was found and throwEx is true.
      * @throws NewTestException    if this is a new test was found and throwEx
      *                             is true.
+     * @throws RuntimeException    the first failure of an asynchronous
+     *                             checkpoint (other than a mismatch), once
+     *                             the session has ended, whatever throwEx is.
      */
     public TestResults close(boolean throwEx) {
         try {
@@ -489,9 +880,10 @@ abstract class EyesBase {
             logger.verbose("close()");
             ArgumentGuard.isValidState(isOpen, "Eyes not open");
 
+            awaitPendingCheckpoints(false);
             isOpen = false;
 
-            lastScreenshot = null;
+            setLastScreenshot(null);
             clearUserInputs();
 
             if (runningSession == null) {
@@ -515,6 +907,11 @@ abstract class EyesBase {
             results.setUrl(sessionResultsUrl);
             logger.verbose("close(): " + results);
 
+            // The results don't tell that a checkpoint wasn't matched at all.
+            if (checkpointFailure != null) {
+                throwCheckpointFailure();
+            }
+
             String instructions;
             if (!isNewSession &&
                     (0 < results.getMismatches() || 0 < results.getMissing())) {
@@ -558,6 +955,8 @@ abstract class EyesBase {
             // Making sure that we reset the running session even if an
             // exception was thrown during close.
             runningSession = null;
+            checkpointFailure = null;
+            closeMatchWindowTask();
             logger.getLogHandler().close();
         }
     }
@@ -572,9 +971,10 @@ abstract class EyesBase {
                 return;
             }
 
+            awaitPendingCheckpoints(true);
             isOpen = false;
 
-            lastScreenshot = null;
+            setLastScreenshot(null);
             clearUserInputs();
 
             if (null == runningSession) {
@@ -593,10 +993,25 @@ abstract class EyesBase {
             }
         } finally {
             runningSession = null;
+            // The test is aborted anyway, so failed checkpoints are only
+            // logged.
+            checkpointFailure = null;
+            closeMatchWindowTask();
             logger.getLogHandler().close();
         }
     }
 
+    /**
+     * Releases the match window task of the ended session, if any. A new one
+     * is created when the next session starts.
+     */
+    private void closeMatchWindowTask() {
+        if (matchWindowTask != null) {
+            matchWindowTask.close();
+            matchWindowTask = null;
+        }
+    }
+
     /**
      * @param hostOS The host OS running the AUT.
      */
@@ -753,6 +1168,246 @@ abstract class EyesBase {
             tag = "";
         }
 
+        // Checkpoints are matched in order, so asynchronous checkpoints must
+        // complete first.
+        awaitPendingCheckpoints(false);
+        ensureSessionStarted();
+
+        checkpointKey = String.format("%s/%s/%d", appName, testName,
+                ++checkpointsCount);
+
+        logger.verbose("Calling match window...");
+        result = matchWindowTask.matchWindow(getUserInputs(), lastScreenshot,
+                regionProvider, tag,
+                shouldMatchWindowRunOnceOnTimeout, ignoreMismatch,
+                retryTimeout);
+        logger.verbose("MatchWindow Done!");
+
+        if (result.getAsExpected() || !ignoreMismatch) {
+            clearUserInputs();
+        }
+        if (!result.getAsExpected()) {
+            shouldMatchWindowRunOnceOnTimeout = true;
+        }
+        onMatchResult(result, tag, ignoreMismatch, checkpointKey);
+
+        logger.verbose("CheckWindowBase Done!");
+        return result;
+    }
+
+    /**
+     * Takes a snapshot of the application under test, and matches it with
+     * the expected output asynchronously. Only taking the snapshot is done
+     * on the calling thread. Compressing, uploading and matching it are done
+     * in the background, in the order of the calls, so the test can go on
+     * meanwhile. {@link #close()} waits for the pending checkpoints.
+     * <p>
+     * The snapshot is matched once, as taken (i.e., there are no retries
+     * until the match timeout expires), since the application keeps changing
+     * while the match is in progress.
+     * <p>
+     * The checkpoint's key and the match window task are captured when it's
+     * submitted. Its result is published back through its future, once the
+     * pending checkpoints are waited for (e.g., a mismatch makes the next
+     * synchronous checkpoint run once on timeout).
+     *
+     * @param regionProvider Returns the region to check or the empty
+     *                       rectangle to check the entire window.
+     * @param tag An optional tag to be associated with the snapshot.
+     * @param ignoreMismatch Whether to ignore this check if a mismatch is
+     *                       found.
+     * @return The future result of matching the output with the expected
+     * output. Fails with a {@link TestFailedException} on a mismatch if
+     * failures are reported immediately.
+     */
+    protected Future<MatchResult> checkWindowBaseAsync(
+            RegionProvider regionProvider, String tag,
+            final boolean ignoreMismatch) {
+
+        if (getIsDisabled()) {
+            logger.verbose("CheckWindowBaseAsync(): Ignored");
+            MatchResult result = new MatchResult();
+            result.setAsExpected(true);
+            return getCompletedFuture(result);
+        }
+
+        ArgumentGuard.isValidState(getIsOpen(), "Eyes not open");
+        ArgumentGuard.notNull(regionProvider, "regionProvider");
+
+        logger.verbose(String.format(
+                "CheckWindowBaseAsync(regionProvider, '%s', %b)",
+                tag, ignoreMismatch));
+
+        final String checkTag = (tag == null) ? "" : tag;
+
+        ensureSessionStarted();
+
+        // Blocks while too many checkpoints are pending.
+        if (checkpointPermits == null) {
+            checkpointPermits = new Semaphore(maxPendingCheckpoints);
+        }
+        final Semaphore permits = checkpointPermits;
+        permits.acquireUninterruptibly();
+
+        final String key = String.format("%s/%s/%d", appName, testName,
+                ++checkpointsCount);
+        final Trigger[] checkUserInputs;
+        final EyesScreenshot screenshot;
+        final String title;
+        try {
+            // The user inputs which preceded the snapshot belong to this
+            // checkpoint.
+            checkUserInputs = getUserInputs();
+            clearUserInputs();
+            screenshot = getRegionScreenshot(regionProvider);
+            title = getTitle();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+
+        if (checkpointExecutor == null) {
+            checkpointExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "eyes-checkpoints");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+
+        final MatchWindowTask task = matchWindowTask;
+        Future<MatchResult> future = checkpointExecutor.submit(
+                new Callable<MatchResult>() {
+                    public MatchResult call() {
+                        try {
+                            AppOutputWithScreenshot appOutput =
+                                    new AppOutputWithScreenshot(
+                                            new AppOutput(title,
+                                                    compressScreenshot(
+                                                            screenshot,
+                                                            lastScreenshot,
+                                                            key)),
+                                            screenshot);
+
+                            MatchResult result = task.performMatch(
+                                    checkUserInputs, appOutput, checkTag,
+                                    ignoreMismatch);
+                            result.setScreenshot(screenshot);
+
+                            onMatchResult(result, checkTag, ignoreMismatch,
+                                    key);
+                            return result;
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+        pendingCheckpoints.add(future);
+
+        logger.verbose("CheckWindowBaseAsync Done!");
+        return future;
+    }
+
+    /**
+     * Waits for the pending asynchronous checkpoints, in order. Failures of
+     * checkpoints are logged, and the first failure which isn't a mismatch
+     * is kept to be thrown by {@link #close()}, since the caller might not
+     * check the checkpoints' futures. Mismatches make the next match run
+     * once on timeout, as they do for synchronous checkpoints.
+     *
+     * @param cancel Whether checkpoints which have not started yet are
+     *               cancelled rather than waited for. A checkpoint which
+     *               already started is waited for either way.
+     */
+    private void awaitPendingCheckpoints(boolean cancel) {
+        if (pendingCheckpoints.isEmpty()) {
+            return;
+        }
+
+        logger.verbose(String.format("Waiting for %d pending checkpoint(s)...",
+                pendingCheckpoints.size()));
+        try {
+            for (Future<MatchResult> checkpoint : pendingCheckpoints) {
+                if (cancel) {
+                    checkpoint.cancel(false);
+                }
+            }
+            for (Future<MatchResult> checkpoint : pendingCheckpoints) {
+                try {
+                    if (!checkpoint.get().getAsExpected()) {
+                        shouldMatchWindowRunOnceOnTimeout = true;
+                    }
+                } catch (CancellationException e) {
+                    logger.verbose("Checkpoint cancelled");
+                } catch (ExecutionException e) {
+                    // Mismatches are reported immediately as failures.
+                    if (e.getCause() instanceof TestFailedException) {
+                        shouldMatchWindowRunOnceOnTimeout = true;
+                    } else if (checkpointFailure == null) {
+                        checkpointFailure = e.getCause();
+                    }
+                    logger.log("Checkpoint failed: "
+                            + e.getCause().getMessage());
+                }
+            }
+            if (cancel) {
+                // A cancelled checkpoint which already started isn't
+                // stopped (and its future doesn't wait for it), so it's
+                // waited for by the executor's termination.
+                checkpointExecutor.shutdown();
+                checkpointExecutor.awaitTermination(Long.MAX_VALUE,
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EyesException(
+                    "Interrupted while waiting for pending checkpoints!", e);
+        } finally {
+            pendingCheckpoints.clear();
+        }
+        logger.verbose("Done!");
+
+        // Cancelled checkpoints never released their permits.
+        checkpointPermits = null;
+        checkpointExecutor.shutdown();
+        checkpointExecutor = null;
+    }
+
+    /**
+     * Throws the kept failure of an asynchronous checkpoint.
+     */
+    private void throwCheckpointFailure() {
+        Throwable failure = checkpointFailure;
+        checkpointFailure = null;
+        // Checkpoints only throw unchecked exceptions.
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw (RuntimeException) failure;
+    }
+
+    /**
+     * @return A future which already completed with the given result.
+     */
+    private static Future<MatchResult> getCompletedFuture(
+            final MatchResult result) {
+        FutureTask<MatchResult> future = new FutureTask<MatchResult>(
+                new Callable<MatchResult>() {
+                    public MatchResult call() {
+                        return result;
+                    }
+                });
+        future.run();
+        return future;
+    }
+
+    /**
+     * Starts a session on the server, if one wasn't started yet.
+     */
+    private void ensureSessionStarted() {
         if (runningSession == null) {
             logger.verbose("No running session, calling start session..");
             startSession();
@@ -774,23 +1429,34 @@ abstract class EyesBase {
                         }
                     }
             );
+            matchWindowTask.setRetryPolicy(matchRetryPolicy);
+            matchWindowTask.setStabilization(stableFramesCount,
+                    stabilizationInterval, stabilizationTimeout);
+            matchWindowTask.setPipelined(pipelineMatchRetries);
         }
+    }
 
-        logger.verbose("Calling match window...");
-        result = matchWindowTask.matchWindow(getUserInputs(), lastScreenshot,
-                regionProvider, tag,
-                shouldMatchWindowRunOnceOnTimeout, ignoreMismatch,
-                retryTimeout);
-        logger.verbose("MatchWindow Done!");
+    /**
+     * Updates the state of the test by the result of a checkpoint's match.
+     *
+     * @param result The result of the match.
+     * @param tag The checkpoint's tag.
+     * @param ignoreMismatch Whether the checkpoint is ignored if a mismatch
+     *                       is found.
+     * @param key The checkpoint's key in the reference image cache.
+     */
+    private void onMatchResult(MatchResult result, String tag,
+                               boolean ignoreMismatch, String key) {
+        addReferenceImage(result, key);
+        // The result may be held by the caller for as long as the screenshot
+        // would be held as the last screenshot.
+        storePixels(result.getScreenshot());
 
         if (!result.getAsExpected()) {
             if (!ignoreMismatch) {
-                clearUserInputs();
-                lastScreenshot = result.getScreenshot();
+                setLastScreenshot(result.getScreenshot());
             }
 
-            shouldMatchWindowRunOnceOnTimeout = true;
-
             if (!runningSession.getIsNewSession()) {
                 logger.log(String.format("Mismatch! (%s)", tag));
             }
@@ -802,12 +1468,72 @@ abstract class EyesBase {
                         sessionStartInfo.getAppIdOrName()));
             }
         } else { // Match successful
-            clearUserInputs();
-            lastScreenshot = result.getScreenshot();
+            setLastScreenshot(result.getScreenshot());
         }
+    }
 
-        logger.verbose("CheckWindowBase Done!");
-        return result;
+    /**
+     * Moves the pixels of a screenshot which is retained after its match to
+     * a pixel store, returning its images to the image pool (if set). Does
+     * nothing if screenshots are stored on the heap.
+     *
+     * @param screenshot The screenshot, or {@code null}.
+     */
+    private void storePixels(EyesScreenshot screenshot) {
+        if (screenshot == null || screenshot.getPixelStore() != null
+                || screenshotStorage == ScreenshotStorage.HEAP) {
+            return;
+        }
+
+        BufferedImage image = screenshot.getNormalizedImage(imagePool);
+        PixelStore pixelStore =
+                (screenshotStorage == ScreenshotStorage.OFF_HEAP) ?
+                        PixelStore.offHeap(image) :
+                        PixelStore.compressed(image);
+        if (imagePool != null) {
+            // The reference image cache might hold the normalized image.
+            screenshot.releaseImages(imagePool, referenceImageCache == null);
+        }
+        screenshot.setPixelStore(pixelStore);
+    }
+
+    /**
+     * Replaces the last screenshot, returning the images of the replaced
+     * screenshot to the image pool (if set).
+     *
+     * @param screenshot The new last screenshot, or {@code null}.
+     */
+    private void setLastScreenshot(EyesScreenshot screenshot) {
+        EyesScreenshot previousScreenshot;
+        synchronized (lastScreenshotLock) {
+            previousScreenshot = lastScreenshot;
+            lastScreenshot = screenshot;
+        }
+
+        // No trigger uses the previous screenshot anymore.
+        if (imagePool != null && previousScreenshot != null
+                && previousScreenshot != screenshot) {
+            // The reference image cache might hold the normalized image.
+            previousScreenshot.releaseImages(imagePool,
+                    referenceImageCache == null);
+        }
+    }
+
+    /**
+     * Adds the uploaded screenshot of a match to the reference image cache,
+     * if one is set and the server returned the screenshot's ID.
+     *
+     * @param result The result of the match.
+     * @param key The checkpoint's key in the cache.
+     */
+    private void addReferenceImage(MatchResult result, String key) {
+        if (referenceImageCache == null || result.getWindowId() == null
+                || result.getScreenshot() == null) {
+            return;
+        }
+
+        referenceImageCache.put(key, result.getWindowId(),
+                result.getScreenshot().getNormalizedImage());
     }
 
     /**
@@ -864,6 +1590,7 @@ abstract class EyesBase {
             this.appName = appName;
             this.testName = testName;
             this.viewportSize = viewportSize;
+            checkpointsCount = 0;
             isOpen = true;
 
         } catch (EyesException e) {
@@ -940,15 +1667,19 @@ abstract class EyesBase {
         // We don't want to change the objects we received.
         control = new Region(control);
 
-        if (lastScreenshot == null) {
-            logger.verbose(String.format(
-                    "AddTextTrigger: Ignoring '%s' (no screenshot)", text));
-            return;
-        }
+        // Asynchronous checkpoints may replace the screenshot meanwhile.
+        synchronized (lastScreenshotLock) {
+            if (lastScreenshot == null) {
+                logger.verbose(String.format(
+                        "AddTextTrigger: Ignoring '%s' (no screenshot)",
+                        text));
+                return;
+            }
 
-        control = lastScreenshot.getIntersectedRegion(control,
-                CoordinatesType.CONTEXT_RELATIVE,
-                CoordinatesType.SCREENSHOT_AS_IS);
+            control = lastScreenshot.getIntersectedRegion(control,
+                    CoordinatesType.CONTEXT_RELATIVE,
+                    CoordinatesType.SCREENSHOT_AS_IS);
+        }
         if (control.isEmpty()) {
             logger.verbose(String.format(
                     "AddTextTrigger: Ignoring '%s' (out of bounds)", text));
@@ -982,33 +1713,38 @@ abstract class EyesBase {
         ArgumentGuard.notNull(control, "control");
         ArgumentGuard.notNull(cursor, "cursor");
 
-        // Triggers are actually performed on the previous window.
-        if (lastScreenshot == null) {
-            logger.verbose(String.format(
-                    "AddMouseTrigger: Ignoring %s (no screenshot)",
-                    action));
-            return;
-        }
+        Location cursorInScreenshot;
+        Region controlScreenshotIntersect;
+        // Asynchronous checkpoints may replace the screenshot meanwhile.
+        synchronized (lastScreenshotLock) {
+            // Triggers are actually performed on the previous window.
+            if (lastScreenshot == null) {
+                logger.verbose(String.format(
+                        "AddMouseTrigger: Ignoring %s (no screenshot)",
+                        action));
+                return;
+            }
 
-        // Getting the location of the cursor in the screenshot
-        Location cursorInScreenshot = new Location(cursor);
-        // First we need to getting the cursor's coordinates relative to the
-        // context (and not to the control).
-        cursorInScreenshot.offset(control.getLocation());
-        try {
-            cursorInScreenshot = lastScreenshot.getLocationInScreenshot(
-                    cursorInScreenshot, CoordinatesType.CONTEXT_RELATIVE);
-        } catch (OutOfBoundsException e) {
-            logger.verbose(String.format(
-                    "AddMouseTrigger: Ignoring %s (out of bounds)",
-                    action));
-            return;
-        }
+            // Getting the location of the cursor in the screenshot
+            cursorInScreenshot = new Location(cursor);
+            // First we need to getting the cursor's coordinates relative to
+            // the context (and not to the control).
+            cursorInScreenshot.offset(control.getLocation());
+            try {
+                cursorInScreenshot = lastScreenshot.getLocationInScreenshot(
+                        cursorInScreenshot, CoordinatesType.CONTEXT_RELATIVE);
+            } catch (OutOfBoundsException e) {
+                logger.verbose(String.format(
+                        "AddMouseTrigger: Ignoring %s (out of bounds)",
+                        action));
+                return;
+            }
 
-        Region controlScreenshotIntersect =
-                lastScreenshot.getIntersectedRegion(control,
-                        CoordinatesType.CONTEXT_RELATIVE,
-                        CoordinatesType.SCREENSHOT_AS_IS);
+            controlScreenshotIntersect =
+                    lastScreenshot.getIntersectedRegion(control,
+                            CoordinatesType.CONTEXT_RELATIVE,
+                            CoordinatesType.SCREENSHOT_AS_IS);
+        }
 
         // If the region is NOT empty, we'll give the coordinates relative to
         // the control.
@@ -1102,10 +1838,42 @@ abstract class EyesBase {
      * @return The updated app output and screenshot.
      */
     private AppOutputWithScreenshot getAppOutputWithScreenshot(
-            RegionProvider regionProvider, EyesScreenshot lastScreenshot) {
+            RegionProvider regionProvider,
+            final EyesScreenshot lastScreenshot) {
 
         logger.verbose("getAppOutputWithScreenshot()");
 
+        final EyesScreenshot screenshot = getRegionScreenshot(regionProvider);
+        // Compressed later, possibly on another thread.
+        final String key = checkpointKey;
+
+        logger.verbose("Getting title...");
+        final String title = getTitle();
+        logger.verbose("Done!");
+        // The screenshot is only compressed if it's matched, so captures
+        // which are skipped by their fingerprint cost nothing more.
+        AppOutputWithScreenshot result =
+                new AppOutputWithScreenshot(screenshot) {
+                    protected AppOutput createAppOutput() {
+                        logger.verbose("Compressing screenshot...");
+                        AppOutput.ScreenshotWriter compressResult =
+                                compressScreenshot(screenshot,
+                                        lastScreenshot, key);
+                        logger.verbose("Done!");
+                        return new AppOutput(title, compressResult);
+                    }
+                };
+        logger.verbose("getAppOutputWithScreenshot Done!");
+        return result;
+    }
+
+    /**
+     * @param regionProvider A callback for getting the region of the
+     *                       screenshot which will be returned.
+     * @return A screenshot of the region.
+     */
+    private EyesScreenshot getRegionScreenshot(
+            RegionProvider regionProvider) {
         logger.verbose("getting screenshot...");
         // Getting the screenshot (abstract function implemented by each SDK).
         EyesScreenshot screenshot = getScreenshot();
@@ -1117,49 +1885,133 @@ abstract class EyesBase {
             screenshot = screenshot.getSubScreenshot(region,
                     regionProvider.getCoordinatesType(), false);
         }
-
-        logger.verbose("Compreesing screenshot...");
-        String compressResult =
-                compressScreenshot64(screenshot, lastScreenshot);
-        logger.verbose("Done! Getting title...");
-        String title = getTitle();
-        logger.verbose("Done!");
-        AppOutputWithScreenshot result = new AppOutputWithScreenshot(
-                new AppOutput(title, compressResult), screenshot);
-        logger.verbose("getAppOutputWithScreenshot Done!");
-        return result;
+        return screenshot;
     }
 
     /**
-     * Compresses a given screenshot.
+     * Compresses a given screenshot. The images are compared (and encoded,
+     * if needed) before returning, while the delta is only deflated once
+     * the screenshot is written to the request.
      *
      * @param screenshot     The screenshot to compress.
-     * @param lastScreenshot The previous screenshot, or null.
-     * @return A base64 encoded compressed screenshot.
+     * @param lastScreenshot The previous screenshot, or null (in which case
+     *                       the reference image cache is used, if set).
+     * @param key            The checkpoint's key in the reference image
+     *                       cache.
+     * @return Writes the compressed screenshot.
      */
-    private String compressScreenshot64(EyesScreenshot screenshot,
-                                        EyesScreenshot lastScreenshot) {
+    private AppOutput.ScreenshotWriter compressScreenshot(
+            EyesScreenshot screenshot, EyesScreenshot lastScreenshot,
+            String key) {
 
         ArgumentGuard.notNull(screenshot, "screenshot");
 
-        BufferedImage screenshotImage = screenshot.getImage();
-        byte[] uncompressed =
-                ImageUtils.encodeAsPng(screenshotImage);
-
-        BufferedImage source = (lastScreenshot != null) ?
-                lastScreenshot.getImage() : null;
+        // Both images are normalized (once per screenshot), so comparing and
+        // encoding them reads their pixels directly.
+        BufferedImage screenshotImage =
+                screenshot.getNormalizedImage(imagePool);
+        BufferedImage source = null;
+        PixelStore sourcePixels = null;
+        String sourceId = null;
+        if (lastScreenshot != null) {
+            sourcePixels = lastScreenshot.getPixelStore();
+            if (sourcePixels == null) {
+                source = lastScreenshot.getNormalizedImage(imagePool);
+            }
+        } else if (referenceImageCache != null) {
+            // No previous screenshot in the session, so we try compressing
+            // by an image the server already has.
+            sourceId = referenceImageCache.getReferenceId(key);
+            if (sourceId != null) {
+                source = referenceImageCache.getImage(sourceId);
+                logger.verbose(String.format(
+                        "Compressing by reference image '%s'", sourceId));
+            }
+        }
 
-        // Compressing the screenshot
-        byte[] compressedScreenshot;
         try {
-            compressedScreenshot =
-                    ImageDeltaCompressor.compressByRawBlocks(
-                            screenshotImage, uncompressed,
-                            source);
+            // The previous screenshot's store is compared directly.
+            final DirtyBlockMap dirtyBlocks = (sourcePixels != null) ?
+                    ImageDeltaCompressor.findDirtyBlocks(screenshotImage,
+                            sourcePixels, compressionProfile.getBlockSize(),
+                            compressionExecutor, compressionParallelism) :
+                    ImageDeltaCompressor.findDirtyBlocks(screenshotImage,
+                            source, compressionProfile.getBlockSize(),
+                            compressionExecutor, compressionParallelism);
+
+            // The PNG is only needed if there's no delta, or if the delta
+            // might be larger than it. Otherwise the delta isn't staged
+            // either.
+            int width = screenshotImage.getWidth();
+            int height = screenshotImage.getHeight();
+            byte[] uncompressed = null;
+            if (!isDeltaSmallerThanPng(dirtyBlocks, sourceId, width,
+                    height)) {
+                long pixels = (long) width * height;
+                uncompressed = ImageUtils.encodeAsPng(screenshotImage,
+                        compressionProfile,
+                        (pixels > parallelPngThreshold) ?
+                                compressionExecutor : null,
+                        compressionParallelism);
+                synchronized (encodedLengthLock) {
+                    lastEncodedWidth = width;
+                    lastEncodedHeight = height;
+                    lastEncodedLength = uncompressed.length;
+                }
+            }
+
+            final String deltaSourceId = sourceId;
+            final byte[] targetEncoded = uncompressed;
+            final CompressionProfile profile = compressionProfile;
+            final ExecutorService executor = compressionExecutor;
+            final int parallelism = compressionParallelism;
+            return new AppOutput.ScreenshotWriter() {
+                public void writeTo(OutputStream stream) throws IOException {
+                    ImageDeltaCompressor.compressByRawBlocks(dirtyBlocks,
+                            deltaSourceId, targetEncoded, profile, executor,
+                            parallelism, stream);
+                }
+            };
         } catch (IOException e) {
             throw new EyesException("Failed to compress screenshot!", e);
         }
+    }
 
-        return Base64.encodeBase64String(compressedScreenshot);
+    /**
+     * Checks whether the compressed delta of a screenshot is smaller than
+     * the screenshot encoded as PNG, without encoding it. The delta is
+     * smaller if its upper bound is below a lower bound of the PNG's length,
+     * or below the PNG length of the last screenshot of the same size which
+     * was encoded. Consecutive screenshots of the same viewport usually
+     * encode to similar lengths, while the delta of a mostly unchanged
+     * screenshot is a small fraction of them.
+     *
+     * @param dirtyBlocks    The blocks in which the screenshot differs from
+     *                       its source, or {@code null} if there's no source.
+     * @param sourceId       The ID by which the server knows the source, or
+     *                       {@code null}.
+     * @param width          The width of the screenshot.
+     * @param height         The height of the screenshot.
+     * @return Whether the delta is smaller than the PNG.
+     * @throws IOException If UTF-8 is not supported.
+     */
+    private boolean isDeltaSmallerThanPng(DirtyBlockMap dirtyBlocks,
+                                          String sourceId, int width,
+                                          int height) throws IOException {
+        if (dirtyBlocks == null) {
+            return false;
+        }
+
+        long maxDeltaLength = ImageDeltaCompressor.getMaxCompressedLength(
+                dirtyBlocks, sourceId, compressionExecutor,
+                compressionParallelism);
+        if (maxDeltaLength < dirtyBlocks.getMinEncodedLength()) {
+            return true;
+        }
+
+        synchronized (encodedLengthLock) {
+            return lastEncodedWidth == width && lastEncodedHeight == height
+                    && maxDeltaLength < lastEncodedLength;
+        }
     }
 }
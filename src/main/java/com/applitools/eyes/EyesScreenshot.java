@@ -4,6 +4,9 @@
 package com.applitools.eyes;
 
 import com.applitools.utils.ArgumentGuard;
+import com.applitools.utils.ImagePool;
+import com.applitools.utils.ImageUtils;
+import com.applitools.utils.PixelStore;
 
 import java.awt.image.BufferedImage;
 
@@ -11,20 +14,109 @@ import java.awt.image.BufferedImage;
  * Base class for handling screenshots.
  */
 abstract class EyesScreenshot {
+    // Null once the pixels were moved to a store (see setPixelStore), so
+    // subclasses should read the image through getImage().
     protected BufferedImage image;
 
+    // The normalized image is cached along with the image it was created
+    // from, since subclasses may replace the image.
+    private BufferedImage normalizedImage;
+    private BufferedImage normalizedFrom;
+    private PixelStore pixelStore;
+
     public EyesScreenshot(BufferedImage image) {
         ArgumentGuard.notNull(image, "image");
         this.image = image;
     }
 
     /**
-     * @return The screenshot image.
+     * @return The screenshot image. If the screenshot's pixels were moved to
+     * a store, a new image in the canonical pixel layout is created from the
+     * store on each call, so the screenshot itself doesn't hold it.
      */
     public BufferedImage getImage() {
+        if (image == null) {
+            return pixelStore.toImage();
+        }
         return image;
     }
 
+    /**
+     * @return The screenshot image in the canonical pixel layout (see {@link
+     * ImageUtils#normalize(BufferedImage)}). The image is converted once, on
+     * the first call.
+     */
+    public BufferedImage getNormalizedImage() {
+        return getNormalizedImage(null);
+    }
+
+    /**
+     * @param pool The pool from which the normalized image is taken if the
+     *             image needs to be converted, or {@code null}.
+     * @return The screenshot image in the canonical pixel layout.
+     */
+    BufferedImage getNormalizedImage(ImagePool pool) {
+        if (image == null) {
+            // The store keeps the pixels in the canonical layout.
+            return getImage();
+        }
+        if (normalizedImage == null || normalizedFrom != image) {
+            normalizedImage = ImageUtils.normalize(image, pool);
+            normalizedFrom = image;
+        }
+        return normalizedImage;
+    }
+
+    /**
+     * @return The store holding the screenshot's normalized pixels, or
+     * {@code null} if they are only kept in the screenshot's images.
+     */
+    PixelStore getPixelStore() {
+        return pixelStore;
+    }
+
+    /**
+     * Moves the screenshot's pixels to a store, so the screenshot no longer
+     * holds its images. Used for screenshots which are retained for a long
+     * time. The images are rebuilt from the store when requested.
+     *
+     * @param pixelStore The store holding the screenshot's normalized
+     *                   pixels, which must have been created from its
+     *                   normalized image.
+     */
+    void setPixelStore(PixelStore pixelStore) {
+        ArgumentGuard.notNull(pixelStore, "pixelStore");
+
+        this.pixelStore = pixelStore;
+        image = null;
+        normalizedImage = null;
+        normalizedFrom = null;
+    }
+
+    /**
+     * Returns the screenshot's images to a pool, once the screenshot is no
+     * longer needed. The images must not be used afterwards.
+     *
+     * @param pool The pool to return the images to.
+     * @param includeNormalized Whether the normalized image is returned too.
+     *                          It shouldn't be if it might still be used
+     *                          (e.g., it was added to a reference image
+     *                          cache).
+     */
+    void releaseImages(ImagePool pool, boolean includeNormalized) {
+        ArgumentGuard.notNull(pool, "pool");
+
+        if (includeNormalized) {
+            pool.release(normalizedImage);
+        }
+        // Otherwise the image is released as the normalized image, if at all.
+        if (image != normalizedImage) {
+            pool.release(image);
+        }
+        normalizedImage = null;
+        normalizedFrom = null;
+    }
+
     /**
      * Returns a part of the screenshot based on the given region.
      *
@@ -0,0 +1,104 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import com.applitools.utils.ArgumentGuard;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link ReferenceImageCache} which keeps a bounded number of images in
+ * memory, evicting the least recently used ones. Can be shared between
+ * {@code Eyes} instances running the same tests repeatedly in the same
+ * JVM, and used as the image store of a local stand-in server (see {@link
+ * com.applitools.utils.ImageDeltaDecompressor#decompress(BufferedImage,
+ * ReferenceImageCache, byte[])}). The images are lost when the JVM exits.
+ */
+@SuppressWarnings("UnusedDeclaration")
+public class InMemoryReferenceImageCache implements ReferenceImageCache {
+
+    /**
+     * The image last added for a checkpoint.
+     */
+    private static class Reference {
+        public final String checkpointKey;
+        public final String id;
+        public final BufferedImage image;
+
+        public Reference(String checkpointKey, String id,
+                         BufferedImage image) {
+            this.checkpointKey = checkpointKey;
+            this.id = id;
+            this.image = image;
+        }
+    }
+
+    // The references by checkpoint key, in access order. This is the only
+    // map which holds entries; the index by ID follows it, so both are
+    // bounded together.
+    private final Map<String, Reference> references;
+    private final Map<String, Reference> referencesById;
+
+    /**
+     * @param maxImagesCount The maximum number of images kept in the cache.
+     */
+    public InMemoryReferenceImageCache(final int maxImagesCount) {
+        ArgumentGuard.greaterThanZero(maxImagesCount, "maxImagesCount");
+
+        referencesById = new HashMap<String, Reference>();
+        references = new LinkedHashMap<String, Reference>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Reference> eldest) {
+                if (size() <= maxImagesCount) {
+                    return false;
+                }
+                removeFromIndex(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public synchronized void put(String checkpointKey, String id,
+                                 BufferedImage image) {
+        ArgumentGuard.notNull(checkpointKey, "checkpointKey");
+        ArgumentGuard.notNullOrEmpty(id, "id");
+        ArgumentGuard.notNull(image, "image");
+
+        Reference reference = new Reference(checkpointKey, id, image);
+        Reference replaced = references.put(checkpointKey, reference);
+        if (replaced != null) {
+            removeFromIndex(replaced);
+        }
+        referencesById.put(id, reference);
+    }
+
+    public synchronized String getReferenceId(String checkpointKey) {
+        Reference reference = references.get(checkpointKey);
+        return reference != null ? reference.id : null;
+    }
+
+    public synchronized BufferedImage getImage(String id) {
+        Reference reference = referencesById.get(id);
+        if (reference == null) {
+            return null;
+        }
+        // Using the image counts as using its checkpoint's entry.
+        references.get(reference.checkpointKey);
+        return reference.image;
+    }
+
+    /**
+     * Removes a reference which is no longer in the cache from the index by
+     * ID, unless the ID was since added for another checkpoint.
+     */
+    private void removeFromIndex(Reference reference) {
+        if (referencesById.get(reference.id) == reference) {
+            referencesById.remove(reference.id);
+        }
+    }
+}
@@ -6,6 +6,7 @@ package com.applitools.eyes;
 import com.applitools.utils.ArgumentGuard;
 import com.applitools.utils.GeneralUtils;
 import com.applitools.utils.ImageDeltaCompressor;
+import com.applitools.utils.ImageFingerprint;
 import org.apache.commons.codec.binary.Base64;
 
 import javax.imageio.ImageIO;
@@ -14,17 +15,39 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 class MatchWindowTask {
 
-    private static final int MATCH_INTERVAL = 500; // Milliseconds
+    private static final ThreadFactory MATCH_THREAD_FACTORY =
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "eyes-matches");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
 
     private final Logger logger;
     private final ServerConnector serverConnector;
     private final RunningSession runningSession;
     private final int defaultRetryTimeout;
     private final AppOutputProvider appOutputProvider;
-
+    private RetryPolicy retryPolicy;
+    private int stableFramesCount;
+    private int stabilizationInterval;
+    private int stabilizationTimeout;
+    private boolean isPipelined;
+    // Created on the first pipelined match, and reused until closed.
+    private ExecutorService matchExecutor;
 
     /**
      * @param logger            A logger instance.
@@ -49,6 +72,74 @@ class MatchWindowTask {
         this.runningSession = runningSession;
         this.defaultRetryTimeout = retryTimeout * 1000;
         this.appOutputProvider = appOutputProvider;
+        this.retryPolicy = RetryPolicy.DEFAULT;
+        this.stableFramesCount = 0;
+        this.isPipelined = false;
+    }
+
+    /**
+     * @param retryPolicy Determines when the window is captured again while
+     *                    retrying a match.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        ArgumentGuard.notNull(retryPolicy, "retryPolicy");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets whether the window is captured until it stops changing, before
+     * the first match attempt is made.
+     *
+     * @param stableFramesCount The number of consecutive identical captures
+     *                          after which the window is considered stable,
+     *                          or 0 to match the first capture as is.
+     * @param interval          The time between captures, in milliseconds.
+     * @param timeout           The maximal time to wait for the window to
+     *                          become stable, in milliseconds. The last
+     *                          capture is matched once it expires.
+     */
+    public void setStabilization(int stableFramesCount, int interval,
+                                 int timeout) {
+        ArgumentGuard.greaterThanOrEqualToZero(stableFramesCount,
+                "stableFramesCount");
+        ArgumentGuard.greaterThanOrEqualToZero(interval, "interval");
+        ArgumentGuard.greaterThanOrEqualToZero(timeout, "timeout");
+        this.stableFramesCount = stableFramesCount;
+        this.stabilizationInterval = interval;
+        this.stabilizationTimeout = timeout;
+    }
+
+    /**
+     * @param isPipelined Whether match retries are pipelined, i.e., the
+     *                    window is captured (and fingerprinted) again while
+     *                    the previous match is in flight, rather than after it
+     *                    completes. A capture is discarded if the match in
+     *                    flight succeeds.
+     */
+    public void setPipelined(boolean isPipelined) {
+        this.isPipelined = isPipelined;
+    }
+
+    /**
+     * Releases the thread on which pipelined matches run, if it was
+     * created. The task can't be used for pipelined matches afterwards.
+     */
+    public void close() {
+        if (matchExecutor != null) {
+            matchExecutor.shutdown();
+            matchExecutor = null;
+        }
+    }
+
+    /**
+     * @return The executor on which pipelined matches run, one at a time.
+     */
+    private ExecutorService getMatchExecutor() {
+        if (matchExecutor == null) {
+            matchExecutor =
+                    Executors.newSingleThreadExecutor(MATCH_THREAD_FACTORY);
+        }
+        return matchExecutor;
     }
 
     /**
@@ -111,7 +202,10 @@ class MatchWindowTask {
         logger.verbose(String.format("MatchWindow(): retryTimeout = %d",
                 retryTimeout));
 
-        long elapsedTimeStart = System.currentTimeMillis();
+        // Time is measured by the monotonic clock, so it isn't affected by
+        // changes of the system time.
+        long elapsedTimeStart = System.nanoTime();
+        int matchesCount = 0;
 
         // If the wait to load time is 0, or "run once" is true,
         // we perform a single check window.
@@ -122,11 +216,11 @@ class MatchWindowTask {
             }
 
             // Getting the screenshot.
-            appOutput = appOutputProvider.getAppOutput(regionProvider,
-                    lastScreenshot);
+            appOutput = getStableAppOutput(regionProvider, lastScreenshot);
 
             matchResult = performMatch(userInputs, appOutput, tag,
                     ignoreMismatch);
+            ++matchesCount;
 
         } else {
             /*
@@ -137,47 +231,261 @@ class MatchWindowTask {
 
             // We intentionally start the timer after(!) taking the screenshot,
             // so less time is "wasted" on the transfer of the image.
-            appOutput = appOutputProvider.getAppOutput(regionProvider,
-                    lastScreenshot);
+            appOutput = getStableAppOutput(regionProvider, lastScreenshot);
 
             // Start the retry timer.
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
+            long deadline = start
+                    + TimeUnit.MILLISECONDS.toNanos(retryTimeout);
+
+            // In pipelined mode, matches run on another thread, while the
+            // window is captured for the next attempt.
+            ExecutorService matchExecutor = isPipelined
+                    ? getMatchExecutor() : null;
+            AppOutputWithScreenshot matchedAppOutput = appOutput;
+            ImageFingerprint matchedFingerprint = getFingerprint(appOutput);
+            ImageFingerprint previousFingerprint = matchedFingerprint;
+            Future<MatchResult> pendingMatch = startMatch(matchExecutor,
+                    userInputs, appOutput, tag);
+            ++matchesCount;
+
+            // The match retry loop. Each attempt is scheduled by the
+            // retry policy, from the start of the previous one.
+            long attemptStart = start;
+            for (int retry = 0; ; ++retry) {
+                attemptStart += TimeUnit.MILLISECONDS.toNanos(
+                        retryPolicy.getDelay(retry));
+                if (attemptStart - deadline >= 0) {
+                    break;
+                }
+
+                if (attemptStart - System.nanoTime() <= 0) {
+                    // The previous attempt took longer than the delay.
+                    attemptStart = System.nanoTime();
+                }
+
+                // Wait before trying again, unless the pending match
+                // succeeds meanwhile.
+                if (isMatchedBy(pendingMatch, attemptStart)) {
+                    break;
+                }
+
+                appOutput = appOutputProvider.getAppOutput(
+                        regionProvider, lastScreenshot);
+
+                // Matches are sent one at a time, so the server gets
+                // them in order.
+                matchResult = getMatchResult(pendingMatch);
+                if (matchResult.getAsExpected()) {
+                    logger.verbose(
+                            "Matched while capturing, discarding capture");
+                    break;
+                }
+
+                // A screenshot identical to the one which was just
+                // matched would mismatch just the same, so we wait for a
+                // change.
+                ImageFingerprint fingerprint = getFingerprint(appOutput);
+                boolean isChangedSincePrevious =
+                        !fingerprint.matches(previousFingerprint);
+                previousFingerprint = fingerprint;
+                if (fingerprint.matches(matchedFingerprint)) {
+                    logger.verbose("Screenshot unchanged, skipping match");
+                } else if (!retryPolicy.shouldMatch(
+                        isChangedSincePrevious)) {
+                    logger.verbose(
+                            "Screenshot still changing, skipping match");
+                } else {
+                    pendingMatch = startMatch(matchExecutor, userInputs,
+                            appOutput, tag);
+                    ++matchesCount;
+                    matchedAppOutput = appOutput;
+                    matchedFingerprint = fingerprint;
+                }
+            }
 
-            matchResult = performMatch(userInputs, appOutput, tag,
-                    true);
+            matchResult = getMatchResult(pendingMatch);
+            if (matchResult.getAsExpected()) {
+                appOutput = matchedAppOutput;
+            }
 
-            long retry = System.currentTimeMillis() - start;
+            // if we're here because we haven't found a match yet, try once more
+            if (!matchResult.getAsExpected()) {
 
-            // The match retry loop.
-            while ((retry < retryTimeout) && !matchResult.getAsExpected()) {
+                if (!previousFingerprint.matches(matchedFingerprint)) {
+                    // The window changed since the last match.
+                    appOutput = appOutputProvider.getAppOutput(
+                            regionProvider, lastScreenshot);
+
+                    matchResult = performMatch(userInputs, appOutput, tag,
+                            ignoreMismatch);
+                    ++matchesCount;
+                } else {
+                    // The last match is of the current window, so it isn't
+                    // captured (or compressed) again. Its tolerant mismatch
+                    // is already the result if mismatches are ignored.
+                    appOutput = matchedAppOutput;
+                    if (!ignoreMismatch) {
+                        matchResult = performMatch(userInputs, appOutput,
+                                tag, false);
+                        ++matchesCount;
+                    }
+                }
+            }
+        }
+        double elapsedTime = (System.nanoTime() - elapsedTimeStart) / 1e9;
+        logger.verbose(String.format(
+                "match(): Completed in  %.2f seconds (%d match(es), retry "
+                        + "policy: %s)", elapsedTime, matchesCount,
+                retryPolicy));
+        matchResult.setScreenshot(appOutput.getScreenshot());
+        return matchResult;
+    }
 
-                // Wait before trying again.
-                GeneralUtils.sleep(MATCH_INTERVAL);
+    /**
+     * Starts a tolerant match (i.e., one whose mismatch is ignored).
+     *
+     * @param executor   The executor to match on, or {@code null} to match
+     *                   on the calling thread, before returning.
+     * @param userInputs The user inputs related to the current appOutput.
+     * @param appOutput  The application output to be matched.
+     * @param tag        Optional tag to be associated with the match (can
+     *                   be {@code null}).
+     * @return The pending match.
+     */
+    private Future<MatchResult> startMatch(ExecutorService executor,
+            final Trigger[] userInputs,
+            final AppOutputWithScreenshot appOutput, final String tag) {
+        FutureTask<MatchResult> match = new FutureTask<MatchResult>(
+                new Callable<MatchResult>() {
+                    public MatchResult call() {
+                        // Notice the ignoreMismatch here is true
+                        return performMatch(userInputs, appOutput, tag, true);
+                    }
+                });
+        if (executor == null) {
+            match.run();
+        } else {
+            executor.execute(match);
+        }
+        return match;
+    }
 
-                appOutput = appOutputProvider.getAppOutput(regionProvider,
-                        lastScreenshot);
+    /**
+     * Waits until the given time, or until the match succeeds if it does
+     * so before that.
+     *
+     * @param match A pending match.
+     * @param time  The time to wait until, by {@link System#nanoTime()}.
+     * @return Whether the match succeeded.
+     */
+    private static boolean isMatchedBy(Future<MatchResult> match, long time) {
+        try {
+            match.get(Math.max(0, time - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // Rethrown by getMatchResult.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EyesException("Interrupted while matching window!", e);
+        }
+        if (getMatchResult(match).getAsExpected()) {
+            return true;
+        }
 
-                // Notice the ignoreMismatch here is true
-                matchResult = performMatch(userInputs, appOutput, tag, true);
+        long wait = time - System.nanoTime();
+        if (wait > 0) {
+            GeneralUtils.sleep(TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+        return false;
+    }
 
-                retry = System.currentTimeMillis() - start;
+    /**
+     * @param match A pending match.
+     * @return The result of the match, once it completes.
+     */
+    private static MatchResult getMatchResult(Future<MatchResult> match) {
+        try {
+            return match.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EyesException("Interrupted while matching window!", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EyesException("Failed to match window!", cause);
+        }
+    }
 
-            // if we're here because we haven't found a match yet, try once more
-            if (!matchResult.getAsExpected()) {
+    /**
+     * Captures the window until the configured number of consecutive
+     * captures are identical, or the stabilization timeout expires. Frames
+     * of an animation are thus compared locally, rather than matched (and
+     * mismatched) by the server. Captures are only fingerprinted, so only
+     * the returned one is ever compressed, once it's matched.
+     *
+     * @param regionProvider Window region to capture.
+     * @param lastScreenshot The last screenshot matched or not ignored.
+     * @return The last capture.
+     */
+    private AppOutputWithScreenshot getStableAppOutput(
+            RegionProvider regionProvider, EyesScreenshot lastScreenshot) {
+
+        AppOutputWithScreenshot appOutput =
+                appOutputProvider.getAppOutput(regionProvider, lastScreenshot);
+        if (stableFramesCount <= 1) {
+            return appOutput;
+        }
 
-                appOutput = appOutputProvider.getAppOutput(regionProvider,
-                        lastScreenshot);
+        long start = System.nanoTime();
+        long deadline = start
+                + TimeUnit.MILLISECONDS.toNanos(stabilizationTimeout);
+        ImageFingerprint fingerprint = getFingerprint(appOutput);
+        int framesCount = 1;
+        int identicalFramesCount = 1;
+        while (identicalFramesCount < stableFramesCount) {
+            long nextCapture = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(stabilizationInterval);
+            if (nextCapture - deadline >= 0) {
+                break;
+            }
+            GeneralUtils.sleep(stabilizationInterval);
 
-                matchResult = performMatch(userInputs, appOutput, tag,
-                        ignoreMismatch);
+            appOutput = appOutputProvider.getAppOutput(regionProvider,
+                    lastScreenshot);
+            ++framesCount;
+            ImageFingerprint previousFingerprint = fingerprint;
+            fingerprint = getFingerprint(appOutput);
+            if (fingerprint.matches(previousFingerprint)) {
+                ++identicalFramesCount;
+            } else {
+                identicalFramesCount = 1;
             }
         }
-        double elapsedTime = (System.currentTimeMillis() - elapsedTimeStart) /
-                1000;
-        logger.verbose(String.format("match(): Completed in  %.2f seconds",
-                elapsedTime));
-        matchResult.setScreenshot(appOutput.getScreenshot());
-        return matchResult;
+
+        logger.verbose(String.format(
+                "Window %s after %d capture(s) in %.2f seconds",
+                identicalFramesCount < stableFramesCount ? "still changing"
+                        : "stable", framesCount,
+                (System.nanoTime() - start) / 1e9));
+        return appOutput;
+    }
+
+    /**
+     * @param appOutput An application output.
+     * @return The fingerprint of the output's screenshot.
+     */
+    private static ImageFingerprint getFingerprint(
+            AppOutputWithScreenshot appOutput) {
+        // The image is hashed as captured. It's only normalized (and
+        // compressed) if the capture is matched.
+        return ImageFingerprint.of(appOutput.getScreenshot().getImage());
     }
 }
\ No newline at end of file
@@ -0,0 +1,38 @@
+package com.applitools.eyes;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Holds images which were already uploaded to the server, keyed by the IDs
+ * the server knows them by (e.g., the window ID returned by a match), so
+ * later screenshots can be uploaded as a delta from them. Implementations
+ * must be thread safe if shared between {@code Eyes} instances.
+ * <p>
+ * The cache only helps runs which see the images of previous runs. CI runs
+ * usually start a new process, so they need an implementation which
+ * persists the images (e.g., to a directory kept between builds);
+ * {@link InMemoryReferenceImageCache} only serves runs in the same JVM.
+ */
+public interface ReferenceImageCache {
+    /**
+     * Adds an uploaded image to the cache, as the reference for a checkpoint.
+     * @param checkpointKey Identifies the checkpoint for which the image was
+     *                      uploaded (e.g., the app name, test name and step).
+     * @param id The ID by which the server knows the image.
+     * @param image The uploaded image.
+     */
+    public void put(String checkpointKey, String id, BufferedImage image);
+
+    /**
+     * @param checkpointKey Identifies a checkpoint.
+     * @return The ID of the last image added for the checkpoint, or {@code
+     * null} if there is no such image in the cache.
+     */
+    public String getReferenceId(String checkpointKey);
+
+    /**
+     * @param id The ID by which the server knows the image.
+     * @return The image, or {@code null} if it's not in the cache.
+     */
+    public BufferedImage getImage(String id);
+}
@@ -0,0 +1,115 @@
+package com.applitools.eyes;
+
+import com.applitools.utils.ArgumentGuard;
+
+/**
+ * Determines when a window is captured again while retrying a match which
+ * failed, until the match timeout expires, and which of the captures are
+ * matched. Screenshots which are identical to the last one matched are
+ * never matched again, so frequent captures only cost local work while the
+ * window doesn't change.
+ */
+public abstract class RetryPolicy {
+
+    /**
+     * Retries every 500 milliseconds.
+     */
+    public static final RetryPolicy DEFAULT = fixed(500);
+
+    /**
+     * @param retry The number of retries already made (0 before the first
+     *              retry).
+     * @return The time to wait before the retry, in milliseconds. Measured
+     * from the start of the previous attempt, so the time the attempt took
+     * is included.
+     */
+    public abstract int getDelay(int retry);
+
+    /**
+     * @param isChangedSincePrevious Whether the screenshot differs from the
+     *                               one captured before it.
+     * @return Whether a screenshot which differs from the last one matched
+     * should be matched. By default, every such screenshot is.
+     */
+    public boolean shouldMatch(boolean isChangedSincePrevious) {
+        return true;
+    }
+
+    /**
+     * @param interval The time between attempts, in milliseconds.
+     * @return A policy which retries at a fixed interval.
+     */
+    public static RetryPolicy fixed(final int interval) {
+        ArgumentGuard.greaterThanZero(interval, "interval");
+
+        return new RetryPolicy() {
+            public int getDelay(int retry) {
+                return interval;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("fixed(%dms)", interval);
+            }
+        };
+    }
+
+    /**
+     * @param initialDelay The delay before the first retry, in milliseconds.
+     * @param factor The factor by which the delay grows with each retry.
+     * @param maxDelay The maximal delay, in milliseconds.
+     * @return A policy which retries soon at first (for pages which settle
+     * quickly), and less and less often afterwards.
+     */
+    public static RetryPolicy exponential(final int initialDelay,
+                                          final double factor,
+                                          final int maxDelay) {
+        ArgumentGuard.greaterThanZero(initialDelay, "initialDelay");
+        if (maxDelay < initialDelay) {
+            throw new IllegalArgumentException(
+                    "maxDelay must be >= initialDelay");
+        }
+        if (factor < 1) {
+            throw new IllegalArgumentException("factor must be >= 1");
+        }
+
+        return new RetryPolicy() {
+            public int getDelay(int retry) {
+                return (int) Math.min(maxDelay,
+                        initialDelay * Math.pow(factor, retry));
+            }
+
+            @Override
+            public String toString() {
+                return String.format("exponential(%dms, x%.1f, %dms)",
+                        initialDelay, factor, maxDelay);
+            }
+        };
+    }
+
+    /**
+     * @param pollInterval The time between captures, in milliseconds.
+     * @return A policy which captures the window often, and attempts a match
+     * once the window changed and then stayed the same for a poll interval
+     * (so frames in the middle of an animation aren't uploaded).
+     */
+    public static RetryPolicy changeTriggered(final int pollInterval) {
+        ArgumentGuard.greaterThanZero(pollInterval, "pollInterval");
+
+        return new RetryPolicy() {
+            public int getDelay(int retry) {
+                return pollInterval;
+            }
+
+            @Override
+            public boolean shouldMatch(boolean isChangedSincePrevious) {
+                return !isChangedSincePrevious;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("change-triggered(%dms)", pollInterval);
+            }
+        };
+    }
+}
@@ -0,0 +1,25 @@
+package com.applitools.eyes;
+
+/**
+ * Determines where the pixels of screenshots which are retained between
+ * checkpoints (i.e., the previous screenshot, which the next one is
+ * compressed by) are kept. Screenshots which aren't kept on the heap drop
+ * their images, and rebuild them from their pixels when requested.
+ */
+public enum ScreenshotStorage {
+    /**
+     * Screenshots are kept as images on the heap.
+     */
+    HEAP,
+
+    /**
+     * Screenshot pixels are kept in direct buffers, outside of the heap.
+     */
+    OFF_HEAP,
+
+    /**
+     * Screenshot pixels are kept deflated, on the heap. Uses the least
+     * memory, at the cost of inflating the pixels for each comparison.
+     */
+    COMPRESSED,
+}
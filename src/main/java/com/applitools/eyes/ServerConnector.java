@@ -6,15 +6,15 @@ package com.applitools.eyes;
 import com.applitools.utils.ArgumentGuard;
 import com.applitools.utils.GeneralUtils;
 import com.fasterxml.jackson.databind.SerializationFeature;
-import org.apache.commons.codec.binary.Base64;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.ByteArrayOutputStream;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.*;
 
@@ -246,41 +246,29 @@ class ServerConnector extends RestClient {
         }
 
         // Convert the JSON to binary.
-        byte[] jsonBytes;
-        ByteArrayOutputStream jsonToBytesConverter = new ByteArrayOutputStream();
+        final byte[] jsonBytes;
         try {
-            jsonToBytesConverter.write(
-                    jsonData.getBytes(EyesBase.DEFAULT_CHARSET_NAME));
-            jsonToBytesConverter.flush();
-            jsonBytes = jsonToBytesConverter.toByteArray();
+            jsonBytes = jsonData.getBytes(EyesBase.DEFAULT_CHARSET_NAME);
         } catch (IOException e) {
             throw new EyesException("Failed create binary data from JSON!", e);
         }
 
         // Getting the screenshot's bytes (notice this can be either
         // compressed/uncompressed form).
-        byte[] screenshot = Base64.decodeBase64(
-                matchData.getAppOutput().getScreenshot64());
-
-        // Ok, let's create the request data
-        ByteArrayOutputStream requestOutputStream = new ByteArrayOutputStream();
-        DataOutputStream requestDos = new DataOutputStream(requestOutputStream);
-        byte[] requestData;
-        try {
-            requestDos.writeInt(jsonBytes.length);
-            requestDos.flush();
-            requestOutputStream.write(jsonBytes);
-            requestOutputStream.write(screenshot);
-            requestOutputStream.flush();
-
-            // Ok, get the data bytes
-            requestData = requestOutputStream.toByteArray();
-
-            // Release the streams
-            requestDos.close();
-        } catch (IOException e) {
-            throw new EyesException("Failed send check window request!", e);
-        }
+        final AppOutput.ScreenshotWriter screenshot =
+                matchData.getAppOutput().getScreenshot();
+
+        // The request data is the JSON's length (big endian), the JSON and
+        // the screenshot, written straight to the request's stream.
+        StreamingOutput requestData = new StreamingOutput() {
+            public void write(OutputStream stream) throws IOException {
+                DataOutputStream dataStream = new DataOutputStream(stream);
+                dataStream.writeInt(jsonBytes.length);
+                dataStream.write(jsonBytes);
+                dataStream.flush();
+                screenshot.writeTo(stream);
+            }
+        };
 
         // Sending the request
         response = runningSessionsEndpoint.queryParam("apiKey", apiKey).
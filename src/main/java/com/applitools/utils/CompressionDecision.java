@@ -0,0 +1,28 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+/**
+ * The way a target image should be sent, as decided from the blocks in
+ * which it differs from its source image (before anything is deflated).
+ */
+public enum CompressionDecision {
+    /**
+     * The target is identical to the source. The delta is minimal, so the
+     * target does not need to be encoded at all.
+     */
+    UNCHANGED,
+
+    /**
+     * The delta is expected to be smaller than the encoded target, so it
+     * should be compressed (it may still turn out to be larger).
+     */
+    DELTA,
+
+    /**
+     * The delta is estimated to be much larger than the encoded target, so
+     * the encoded target should be used without compressing the delta.
+     */
+    ENCODED
+}
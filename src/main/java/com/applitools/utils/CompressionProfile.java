@@ -0,0 +1,115 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import java.util.zip.Deflater;
+
+/**
+ * Encapsulates the settings by which screenshots are compressed, which
+ * trade CPU time for upload size.
+ */
+public class CompressionProfile {
+
+    // The block size must fit in the (short) block size field of the raw
+    // blocks format, and a block's channel bytes must fit in an array.
+    private static final int MAX_BLOCK_SIZE = 1024;
+
+    /**
+     * The fastest deflate level. Best for fast networks.
+     */
+    public static final CompressionProfile FASTEST =
+            new CompressionProfile(Deflater.BEST_SPEED,
+                    Deflater.DEFAULT_STRATEGY, 10);
+
+    /**
+     * Zlib's default deflate level.
+     */
+    public static final CompressionProfile BALANCED =
+            new CompressionProfile(6, Deflater.DEFAULT_STRATEGY, 10);
+
+    /**
+     * The best (and slowest) deflate level. Best for slow networks. This is
+     * the default.
+     */
+    public static final CompressionProfile SMALLEST =
+            new CompressionProfile(Deflater.BEST_COMPRESSION,
+                    Deflater.DEFAULT_STRATEGY, 10);
+
+    private final int level;
+    private final int strategy;
+    private final int blockSize;
+
+    /**
+     * Creates a profile with explicit settings.
+     * @param level The deflate level, between {@link Deflater#BEST_SPEED}
+     *              (or {@link Deflater#NO_COMPRESSION}) and {@link
+     *              Deflater#BEST_COMPRESSION}.
+     * @param strategy The deflate strategy ({@link
+     *                 Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED}
+     *                 or {@link Deflater#HUFFMAN_ONLY}).
+     * @param blockSize How many pixels per block, for delta compression.
+     */
+    public CompressionProfile(int level, int strategy, int blockSize) {
+        if (level < Deflater.NO_COMPRESSION
+                || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between "
+                    + Deflater.NO_COMPRESSION + " and "
+                    + Deflater.BEST_COMPRESSION);
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY
+                && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Unknown strategy: "
+                    + strategy);
+        }
+        ArgumentGuard.greaterThanZero(blockSize, "blockSize");
+        if (blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize > "
+                    + MAX_BLOCK_SIZE);
+        }
+
+        this.level = level;
+        this.strategy = strategy;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return The deflate level.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The deflate strategy.
+     */
+    public int getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return How many pixels per block, for delta compression.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Creates a deflater with the profile's level and strategy. The caller
+     * is responsible for calling {@link Deflater#end()} on it.
+     * @param nowrap If {@code true}, the zlib header and checksum are
+     *               omitted.
+     * @return A new deflater.
+     */
+    public Deflater createDeflater(boolean nowrap) {
+        Deflater deflater = new Deflater(level, nowrap);
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    public String toString() {
+        return String.format("Level: %d, Strategy: %d, Block size: %d",
+                level, strategy, blockSize);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+/**
+ * A map of the blocks in which a target image differs from a source image,
+ * per channel. Created by {@link
+ * ImageDeltaCompressor#findDirtyBlocks(java.awt.image.BufferedImage,
+ * java.awt.image.BufferedImage, int)} before anything is deflated, so the
+ * cost of the delta can be estimated up front.
+ */
+public class DirtyBlockMap {
+
+    // On the screenshots of the benchmarks module (1080p and full page, 10
+    // to 100 percent changed, block size 10), the delta was 10 to 21 times
+    // the PNG's length, per dirty fraction of the image. A (conservative)
+    // lower ratio is used, so the delta is only skipped when the PNG is
+    // obviously smaller. It's only an estimate, so it's only used when the
+    // PNG is known, to skip deflating the delta.
+    private static final double DELTA_TO_ENCODED_RATIO = 2;
+    // Deflate's maximal compression ratio: a match of 258 bytes coded in 2
+    // bits.
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    // The bytes of a PNG which aren't deflated pixels: the signature (8),
+    // the IHDR (25), IDAT (12) and IEND (12) chunks and the zlib header and
+    // checksum (6).
+    private static final int MIN_PNG_OVERHEAD = 63;
+    // The smallest pixel PNGs are encoded with (RGB, 8 bits per channel).
+    private static final int MIN_PNG_PIXEL_LENGTH = 3;
+
+    private final PixelBlocks blocks;
+    private final int blockSize;
+    // The mask of dirty channels, by block number.
+    private final byte[] dirtyChannels;
+    private int dirtyBlocksCount;
+    // The number of dirty channels, summed over all blocks.
+    private int dirtyBlockChannelsCount;
+    // The number of channel bytes in dirty blocks.
+    private long dirtyBytesCount;
+    // The number of channel bytes in the whole image.
+    private long totalBytesCount;
+
+    /**
+     * @param blocks The pixel blocks of the target and source images.
+     * @param blockSize How many pixels per block.
+     */
+    DirtyBlockMap(PixelBlocks blocks, int blockSize) {
+        this.blocks = blocks;
+        this.blockSize = blockSize;
+        dirtyChannels = new byte[blocks.getBlockColumnsCount()
+                * blocks.getBlockRowsCount()];
+    }
+
+    /**
+     * Compares the blocks of a band of block rows, in all channels. Bands
+     * may be compared concurrently.
+     * @param firstBlockRow The first block row of the band (inclusive).
+     * @param lastBlockRow The last block row of the band (exclusive).
+     */
+    void compare(int firstBlockRow, int lastBlockRow) {
+        int blockColumnsCount = blocks.getBlockColumnsCount();
+        int blockNumber = firstBlockRow * blockColumnsCount;
+        for (int blockRow = firstBlockRow; blockRow < lastBlockRow;
+                ++blockRow) {
+            for (int blockColumn = 0; blockColumn < blockColumnsCount;
+                    ++blockColumn) {
+                dirtyChannels[blockNumber++] =
+                        (byte) blocks.compareBlock(blockColumn, blockRow);
+            }
+        }
+    }
+
+    /**
+     * Computes the dirty blocks statistics. Must be called after all the
+     * blocks were compared.
+     */
+    void summarize() {
+        dirtyBlocksCount = 0;
+        dirtyBlockChannelsCount = 0;
+        dirtyBytesCount = 0;
+        totalBytesCount = 0;
+
+        int blockColumnsCount = blocks.getBlockColumnsCount();
+        int blockNumber = 0;
+        for (int blockRow = 0; blockRow < blocks.getBlockRowsCount();
+                ++blockRow) {
+            int actualBlockHeight = blocks.getActualBlockHeight(blockRow);
+            for (int blockColumn = 0; blockColumn < blockColumnsCount;
+                    ++blockColumn) {
+                int blockBytes = blocks.getActualBlockWidth(blockColumn)
+                        * actualBlockHeight;
+                int channels = dirtyChannels[blockNumber++];
+                if (channels != 0) {
+                    ++dirtyBlocksCount;
+                    dirtyBlockChannelsCount += Integer.bitCount(channels);
+                    dirtyBytesCount +=
+                            Integer.bitCount(channels) * blockBytes;
+                }
+                totalBytesCount += PixelBlocks.CHANNELS_COUNT * blockBytes;
+            }
+        }
+    }
+
+    /**
+     * @return The pixel blocks of the target and source images.
+     */
+    PixelBlocks getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The mask of dirty channels, by block number.
+     */
+    byte[] getDirtyChannels() {
+        return dirtyChannels;
+    }
+
+    /**
+     * @return How many pixels per block.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return The number of block columns.
+     */
+    public int getBlockColumnsCount() {
+        return blocks.getBlockColumnsCount();
+    }
+
+    /**
+     * @return The number of block rows.
+     */
+    public int getBlockRowsCount() {
+        return blocks.getBlockRowsCount();
+    }
+
+    /**
+     * @param blockColumn The column index of the block.
+     * @param blockRow The row index of the block.
+     * @return A mask of the channels in which the target block differs from
+     * the source block (bit {@code c} is set if channel {@code c} differs).
+     */
+    public int getDirtyChannels(int blockColumn, int blockRow) {
+        return dirtyChannels[
+                (blockRow * blocks.getBlockColumnsCount()) + blockColumn];
+    }
+
+    /**
+     * @param blockColumn The column index of the block.
+     * @param blockRow The row index of the block.
+     * @return Whether the target block differs from the source block in any
+     * channel.
+     */
+    public boolean isDirty(int blockColumn, int blockRow) {
+        return getDirtyChannels(blockColumn, blockRow) != 0;
+    }
+
+    /**
+     * @return The number of blocks which differ in any channel.
+     */
+    public int getDirtyBlocksCount() {
+        return dirtyBlocksCount;
+    }
+
+    /**
+     * @return The number of dirty channels, summed over all blocks (i.e., the
+     * number of block records in the delta).
+     */
+    public int getDirtyBlockChannelsCount() {
+        return dirtyBlockChannelsCount;
+    }
+
+    /**
+     * @return The number of channel bytes contained in dirty blocks.
+     */
+    public long getDirtyBytesCount() {
+        return dirtyBytesCount;
+    }
+
+    /**
+     * @return Whether the target image is identical to the source image.
+     */
+    public boolean isUnchanged() {
+        return dirtyBlocksCount == 0;
+    }
+
+    /**
+     * @return The fraction (0 to 1) of the image's channel bytes which are
+     * contained in dirty blocks.
+     */
+    public double getDirtyRatio() {
+        return (totalBytesCount == 0) ? 0 :
+                ((double) dirtyBytesCount) / totalBytesCount;
+    }
+
+    /**
+     * Estimates the length of the compressed delta, assuming the dirty
+     * blocks compress about as well as the encoded image.
+     * @param encodedLength The length of the encoded (PNG) target image.
+     * @return The estimated length in bytes of the compressed delta.
+     */
+    public long estimateCompressedLength(int encodedLength) {
+        return (long) Math.ceil(getDirtyRatio() * encodedLength
+                * DELTA_TO_ENCODED_RATIO);
+    }
+
+    /**
+     * @return A lower bound on the length of the target image encoded as PNG
+     * (by {@link PngEncoder}), which holds even if its rows deflate at
+     * deflate's maximal ratio.
+     */
+    public long getMinEncodedLength() {
+        long rowsLength = (long) blocks.height
+                * (1 + (long) blocks.width * MIN_PNG_PIXEL_LENGTH);
+        return MIN_PNG_OVERHEAD
+                + (rowsLength + MAX_DEFLATE_RATIO - 1) / MAX_DEFLATE_RATIO;
+    }
+
+    /**
+     * Decides how the target image should be sent, by the estimated length
+     * of the delta (see {@link #estimateCompressedLength(int)}). Since the
+     * estimate isn't a bound, {@link CompressionDecision#ENCODED} should only
+     * be taken as a hint to skip deflating the delta when the encoded target
+     * is at hand.
+     * @param encodedLength The length of the encoded (PNG) target image.
+     * @return How the target image should be sent.
+     */
+    public CompressionDecision decide(int encodedLength) {
+        if (isUnchanged()) {
+            return CompressionDecision.UNCHANGED;
+        }
+
+        if (estimateCompressedLength(encodedLength) > encodedLength) {
+            return CompressionDecision.ENCODED;
+        }
+
+        return CompressionDecision.DELTA;
+    }
+}
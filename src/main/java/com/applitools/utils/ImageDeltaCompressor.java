@@ -3,11 +3,21 @@
  */
 package com.applitools.utils;
 
-import java.awt.*;
+import com.applitools.eyes.EyesException;
+
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
@@ -16,8 +26,21 @@ import java.util.zip.DeflaterOutputStream;
  */
 public class ImageDeltaCompressor {
 
-    private static final byte[] PREAMBLE;
-    private static final byte COMPRESS_BY_RAW_BLOCKS_FORMAT = 3;
+    static final byte[] PREAMBLE;
+    static final byte COMPRESS_BY_RAW_BLOCKS_FORMAT = 3;
+    // An empty final deflate block with fixed Huffman codes. Terminates a
+    // deflate stream which was sync flushed.
+    private static final byte[] EMPTY_FINAL_BLOCK = {0x03, 0x00};
+    // Channel (1 byte) + block number (4 bytes).
+    private static final int BLOCK_RECORD_HEADER_LENGTH = 5;
+    // Preamble + format (1 byte) + source ID length (2 bytes) + block size
+    // (2 bytes), without the source ID itself.
+    private static final int MIN_HEADER_LENGTH = 5;
+    // The most a separately deflated stream adds on top of zlib's
+    // deflateBound for its input (which holds for any level and strategy
+    // without flushes): rounding up its ceil(n / 8) and ceil(n / 64) terms
+    // (2), its constant (5), and a sync flush marker (6).
+    private static final int MAX_BAND_OVERHEAD = 13;
 
     // Init the preamble (needs to be in a static init block since we must
     // handle encoding exception).
@@ -35,115 +58,364 @@ public class ImageDeltaCompressor {
     }
 
     /**
-     * Encapsulates a result for the CompareAndCopyBlockChannelData function.
+     * Checks whether the compression output has grown beyond the size of
+     * the encoded target, in which case the compression should be aborted.
      */
-    private static class CompareAndCopyBlockChannelDataResult {
-        private boolean isIdentical;
-        private byte[] buffer;
-
+    private interface OutputSizeCheck {
         /**
-         *
-         * @param isIdentical Whether or not the target block was identical to
-         *                    the source block.
-         * @param buffer The target block's pixel values for a specific channel.
+         * @return Whether or not the output size limit was exceeded.
          */
-        public CompareAndCopyBlockChannelDataResult(boolean isIdentical,
-                byte[] buffer) {
-            this.isIdentical = isIdentical;
-            this.buffer = buffer;
+        boolean isExceeded();
+    }
+
+    /**
+     * Writes the dirty blocks of a single channel for a band of block rows.
+     * @param compressed The (compressing) stream to which the blocks are
+     *                   written.
+     * @param dirtyBlocks The blocks in which the target differs from the
+     *                    source.
+     * @param channel The channel index as written to the output.
+     * @param firstBlockRow The first block row of the band (inclusive).
+     * @param lastBlockRow The last block row of the band (exclusive).
+     * @param sizeCheck Checked after each block written.
+     * @return {@code false} if the writing was aborted since the output size
+     * limit was exceeded, {@code true} otherwise.
+     * @throws IOException If there was a problem writing to the streams.
+     */
+    private static boolean writeChannelBlocks(OutputStream compressed,
+            DirtyBlockMap dirtyBlocks, int channel, int firstBlockRow,
+            int lastBlockRow, OutputSizeCheck sizeCheck) throws IOException {
+
+        PixelBlocks blocks = dirtyBlocks.getBlocks();
+        byte[] dirtyChannels = dirtyBlocks.getDirtyChannels();
+        int blockSize = dirtyBlocks.getBlockSize();
+        int blockColumnsCount = blocks.getBlockColumnsCount();
+        int channelMask = 1 << channel;
+
+        // A single buffer is reused for all the blocks of the band. Each
+        // block record is the channel, the block number (Big endian) and
+        // the block's channel bytes.
+        byte[] record = new byte[BLOCK_RECORD_HEADER_LENGTH
+                + (blockSize * blockSize)];
+        record[0] = (byte) channel;
+
+        int blockNumber = firstBlockRow * blockColumnsCount;
+        for (int blockRow = firstBlockRow; blockRow < lastBlockRow;
+                ++blockRow) {
+            for (int blockColumn = 0; blockColumn < blockColumnsCount;
+                    ++blockColumn) {
+
+                if ((dirtyChannels[blockNumber] & channelMask) != 0) {
+                    record[1] = (byte) (blockNumber >>> 24);
+                    record[2] = (byte) (blockNumber >>> 16);
+                    record[3] = (byte) (blockNumber >>> 8);
+                    record[4] = (byte) blockNumber;
+                    int recordLength = blocks.copyBlockChannelData(channel,
+                            blockColumn, blockRow, record,
+                            BLOCK_RECORD_HEADER_LENGTH);
+                    compressed.write(record, 0, recordLength);
+
+                    // If the number of bytes already written is greater
+                    // then the number of bytes for the uncompressed
+                    // target, there's no point in going on.
+                    if (sizeCheck.isExceeded()) {
+                        return false;
+                    }
+                }
+
+                ++blockNumber;
+            }
         }
+        return true;
+    }
 
-        /**
-         * @return Whether or not the target block was identical to the
-         * source block.
-         */
-        public boolean getIsIdentical() {
-            return isIdentical;
+    /**
+     * Writes the header of the raw blocks format.
+     * @param resultStream The stream to which the header is written.
+     * @param sourceId The ID by which the server knows the source image, or
+     *                 {@code null} if the source is the previous image
+     *                 uploaded in the session.
+     * @param blockSize How many pixels per block.
+     * @throws IOException If there was a problem writing to the stream.
+     */
+    private static void writeHeader(OutputStream resultStream,
+            String sourceId, int blockSize) throws IOException {
+        DataOutputStream resultDataOutputStream =
+                new DataOutputStream(resultStream);
+
+        resultDataOutputStream.write(PREAMBLE, 0, PREAMBLE.length);
+        resultDataOutputStream.write(COMPRESS_BY_RAW_BLOCKS_FORMAT);
+        // Writing the source ID's length (Big endian) followed by its bytes.
+        // Without a source ID, we only write 0 length.
+        byte[] sourceIdBytes = getSourceIdBytes(sourceId);
+        resultDataOutputStream.writeShort(sourceIdBytes.length);
+        resultDataOutputStream.write(sourceIdBytes);
+
+        // Writing the block size (Big endian)
+        resultDataOutputStream.writeShort(blockSize);
+        resultDataOutputStream.flush();
+    }
+
+    /**
+     * @param sourceId A source ID, or {@code null}.
+     * @return The UTF-8 bytes of the source ID, or an empty array if there's
+     * no source ID.
+     * @throws IOException If UTF-8 is not supported.
+     */
+    private static byte[] getSourceIdBytes(String sourceId)
+            throws IOException {
+        if (sourceId == null) {
+            return new byte[0];
         }
 
-        /**
-         * @return The target block's pixel values for a specific channel.
-         */
-        public byte[] getBuffer() {
-            return buffer;
+        byte[] sourceIdBytes = sourceId.getBytes("UTF-8");
+        if (sourceIdBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "sourceId is too long: " + sourceIdBytes.length
+                            + " bytes");
         }
+        return sourceIdBytes;
     }
 
     /**
-     * Computes the width and height of the image data contained in the block
-     * at the input column and row.
-     * @param imageSize The image size in pixels.
-     * @param blockSize The block size for which we would like to compute the
-     *                  image data width and height.
-     * @param blockColumn The block column index
-     * @param blockRow The block row index
-     * @return The width and height of the image data contained in the block.
+     * Waits for a task submitted by a compressor.
+     * @param future The task's future.
+     * @param <T> The type of the task's result.
+     * @return The task's result.
+     * @throws IOException If the task failed with an {@code IOException}, or
+     * the waiting thread was interrupted.
      */
-    private static Dimension getActualBlockSize(Dimension imageSize,
-            int blockSize, int blockColumn, int blockRow) {
-        int actualWidth = Math.min(imageSize.width - (blockColumn * blockSize),
-                blockSize);
-        int actualHeight = Math.min(imageSize.height - (blockRow * blockSize),
-                                blockSize);
+    static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for compression!");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new EyesException("Failed to compress image!", cause);
+        }
+    }
+
+    /**
+     * Computes an upper bound on the length of the compression result of the
+     * given dirty blocks, from the length of the block records and the worst
+     * case expansion of deflate, whatever the compression profile.
+     * @param dirtyBlocks The blocks in which the target differs from the
+     *                    source.
+     * @param sourceId The ID by which the server knows the source image, or
+     *                 {@code null}.
+     * @param executorService The executor on which the partitions would be
+     *                        compressed, or {@code null}.
+     * @param parallelism The number of bands of block rows each channel
+     *                    would be split into.
+     * @return The upper bound, in bytes.
+     * @throws IOException If UTF-8 is not supported.
+     */
+    public static long getMaxCompressedLength(DirtyBlockMap dirtyBlocks,
+            String sourceId, ExecutorService executorService,
+            int parallelism) throws IOException {
+        ArgumentGuard.notNull(dirtyBlocks, "dirtyBlocks");
+
+        long bandsCount = 1;
+        if (executorService != null) {
+            int blockRowsCount = dirtyBlocks.getBlockRowsCount();
+            int bandRowsCount = getBandRowsCount(blockRowsCount, parallelism);
+            bandsCount = PixelBlocks.CHANNELS_COUNT
+                    * ((blockRowsCount + bandRowsCount - 1) / bandRowsCount);
+        }
 
-        return new Dimension(actualWidth, actualHeight);
+        long recordsLength = dirtyBlocks.getDirtyBytesCount()
+                + (long) BLOCK_RECORD_HEADER_LENGTH
+                    * dirtyBlocks.getDirtyBlockChannelsCount();
+        return PREAMBLE.length + MIN_HEADER_LENGTH
+                + getSourceIdBytes(sourceId).length
+                + recordsLength + (recordsLength / 8) + (recordsLength / 64)
+                + bandsCount * MAX_BAND_OVERHEAD + EMPTY_FINAL_BLOCK.length;
     }
 
     /**
-     * Compares a block of pixels between the source and target images.
-     * @param sourcePixels The pixels of the source block.
-     * @param targetPixels The pixels of the target block
-     * @param imageSize The image size in pixels.
-     * @param pixelLength Bytes per pixel. Since pixel might include alpha.
-     * @param blockSize The block size in pixels.
-     * @param blockColumn The column index of the block to compare.
-     * @param blockRow The row index of the block to compare.
-     * @param channel The channel for which we compare the blocks
-     * @return Whether the source and target blocks are identical,
-     * and a copy of the target block's channel bytes.
+     * Checks whether the compressed delta is smaller than the target image
+     * encoded as PNG, however well the image would encode. In that case the
+     * target doesn't need to be encoded at all.
+     * @param dirtyBlocks The blocks in which the target differs from the
+     *                    source, or {@code null} if there's no source.
+     * @param sourceId The ID by which the server knows the source image, or
+     *                 {@code null}.
+     * @param executorService The executor on which the partitions would be
+     *                        compressed, or {@code null}.
+     * @param parallelism The number of bands of block rows each channel
+     *                    would be split into.
+     * @return Whether the upper bound of the delta's length (see {@link
+     * #getMaxCompressedLength(DirtyBlockMap, String, ExecutorService, int)})
+     * is below the lower bound of the encoded target's length (see {@link
+     * DirtyBlockMap#getMinEncodedLength()}).
+     * @throws IOException If UTF-8 is not supported.
      */
-    @SuppressWarnings("SpellCheckingInspection")
-    private static CompareAndCopyBlockChannelDataResult
-            CompareAndCopyBlockChannelData(
-                byte[] sourcePixels, byte[] targetPixels,
-                Dimension imageSize, int pixelLength, int blockSize,
-            int blockColumn, int blockRow, int channel) {
-
-        boolean isIdentical = true; // initial default
-
-        // Getting the actual amount of data in the block we wish to copy
-        Dimension actualBlockSize =
-                getActualBlockSize(imageSize, blockSize, blockColumn, blockRow);
-
-        int actualBlockHeight = actualBlockSize.height;
-        int actualBlockWidth = actualBlockSize.width;
-
-        int stride = imageSize.width * pixelLength;
-
-        // The number of bytes actually contained in the block for the
-        // current channel (might be less than blockSize*blockSize)
-        byte[] channelBytes = new byte[actualBlockHeight*actualBlockWidth];
-        int channelBytesOffset = 0;
-
-        // Actually comparing and copying the pixels
-        byte sourceByte, targetByte;
-        for (int h = 0; h < actualBlockHeight; ++h) {
-            int offset = (((blockSize * blockRow) + h) * stride) +
-                    (blockSize * blockColumn * pixelLength) + channel;
-            for (int w = 0; w < actualBlockWidth; ++w) {
-                sourceByte = sourcePixels[offset];
-                targetByte = targetPixels[offset];
-                if (sourceByte != targetByte) {
-                    isIdentical = false;
-                }
+    public static boolean isDeltaBelowMinEncodedLength(
+            DirtyBlockMap dirtyBlocks, String sourceId,
+            ExecutorService executorService, int parallelism)
+            throws IOException {
+        return dirtyBlocks != null
+                && getMaxCompressedLength(dirtyBlocks, sourceId,
+                        executorService, parallelism)
+                    < dirtyBlocks.getMinEncodedLength();
+    }
+
+    /**
+     * @param blockRowsCount The number of block rows.
+     * @param parallelism The requested number of bands.
+     * @return The number of block rows in each band.
+     */
+    private static int getBandRowsCount(int blockRowsCount, int parallelism) {
+        int bandsCount = Math.max(1, Math.min(parallelism, blockRowsCount));
+        return (blockRowsCount / bandsCount)
+                + ((blockRowsCount % bandsCount) == 0 ? 0 : 1);
+    }
+
+    /**
+     * Finds the blocks in which a target image differs from a source image.
+     * This is a cheap pass over the pixels (nothing is copied or deflated),
+     * which allows estimating the cost of the delta before compressing it.
+     * @param target The image we want to compress.
+     * @param source The baseline image by which a compression will be
+     *               performed.
+     * @param blockSize How many pixels per block.
+     * @return The blocks in which the target differs from the source, or
+     * {@code null} if there's no source or the images are in different
+     * sizes.
+     * @throws java.io.IOException If the comparison was interrupted.
+     */
+    public static DirtyBlockMap findDirtyBlocks(BufferedImage target,
+            BufferedImage source, int blockSize) throws IOException {
+        return findDirtyBlocks(target, source, blockSize, null, 1);
+    }
+
+    /**
+     * Finds the blocks in which a target image differs from a source image.
+     * @see #findDirtyBlocks(BufferedImage, BufferedImage, int)
+     * @param target The image we want to compress.
+     * @param source The baseline image by which a compression will be
+     *               performed.
+     * @param blockSize How many pixels per block.
+     * @param executorService The executor on which bands of block rows are
+     *                        compared, or {@code null} to compare on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows. Ignored if
+     *                    {@code executorService} is {@code null}.
+     * @return The blocks in which the target differs from the source, or
+     * {@code null} if there's no source or the images are in different
+     * sizes.
+     * @throws java.io.IOException If the comparison was interrupted.
+     */
+    public static DirtyBlockMap findDirtyBlocks(BufferedImage target,
+            BufferedImage source, int blockSize,
+            ExecutorService executorService, int parallelism)
+            throws IOException {
+
+        ArgumentGuard.notNull(target, "target");
+        ArgumentGuard.greaterThanZero(blockSize, "blockSize");
+        ArgumentGuard.greaterThanZero(parallelism, "parallelism");
 
-                channelBytes[channelBytesOffset++] = targetByte;
-                offset += pixelLength;
+        if (source == null
+                || (source.getWidth() != target.getWidth())
+                || (source.getHeight() != target.getHeight())) {
+            return null;
+        }
+
+        return findDirtyBlocks(PixelBlocks.create(target, source, blockSize),
+                blockSize, executorService, parallelism);
+    }
+
+    /**
+     * Finds the blocks in which a target image differs from a source image
+     * kept in a pixel store, reading the store directly.
+     * @see #findDirtyBlocks(BufferedImage, BufferedImage, int,
+     * ExecutorService, int)
+     * @param target The image we want to compress.
+     * @param source The store of the baseline image by which a compression
+     *               will be performed.
+     * @param blockSize How many pixels per block.
+     * @param executorService The executor on which bands of block rows are
+     *                        compared, or {@code null} to compare on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows. Ignored if
+     *                    {@code executorService} is {@code null}.
+     * @return The blocks in which the target differs from the source, or
+     * {@code null} if there's no source or the images are in different
+     * sizes.
+     * @throws java.io.IOException If the comparison was interrupted.
+     */
+    public static DirtyBlockMap findDirtyBlocks(BufferedImage target,
+            PixelStore source, int blockSize,
+            ExecutorService executorService, int parallelism)
+            throws IOException {
+
+        ArgumentGuard.notNull(target, "target");
+        ArgumentGuard.greaterThanZero(blockSize, "blockSize");
+        ArgumentGuard.greaterThanZero(parallelism, "parallelism");
+
+        if (source == null
+                || (source.getWidth() != target.getWidth())
+                || (source.getHeight() != target.getHeight())) {
+            return null;
+        }
+
+        return findDirtyBlocks(PixelBlocks.create(target, source, blockSize),
+                blockSize, executorService, parallelism);
+    }
+
+    /**
+     * Compares the blocks of the given pixel blocks.
+     */
+    private static DirtyBlockMap findDirtyBlocks(PixelBlocks pixelBlocks,
+            int blockSize, ExecutorService executorService, int parallelism)
+            throws IOException {
+        final DirtyBlockMap dirtyBlocks = new DirtyBlockMap(pixelBlocks,
+                blockSize);
+        int blockRowsCount = dirtyBlocks.getBlockRowsCount();
+
+        if (executorService == null) {
+            dirtyBlocks.compare(0, blockRowsCount);
+        } else {
+            int bandRowsCount = getBandRowsCount(blockRowsCount, parallelism);
+            List<Future<Object>> comparisons = new ArrayList<Future<Object>>();
+            try {
+                for (int firstBlockRow = 0; firstBlockRow < blockRowsCount;
+                        firstBlockRow += bandRowsCount) {
+                    final int bandFirstBlockRow = firstBlockRow;
+                    final int bandLastBlockRow =
+                            Math.min(firstBlockRow + bandRowsCount,
+                                    blockRowsCount);
+
+                    comparisons.add(executorService.submit(
+                            new Callable<Object>() {
+                                public Object call() {
+                                    dirtyBlocks.compare(bandFirstBlockRow,
+                                            bandLastBlockRow);
+                                    return null;
+                                }
+                            }));
+                }
+                for (Future<Object> comparison : comparisons) {
+                    getResult(comparison);
+                }
+            } finally {
+                for (Future<Object> comparison : comparisons) {
+                    comparison.cancel(false);
+                }
             }
         }
 
-        return new CompareAndCopyBlockChannelDataResult(isIdentical,
-                channelBytes);
+        dirtyBlocks.summarize();
+        return dirtyBlocks;
     }
 
     /**
@@ -161,101 +433,521 @@ public class ImageDeltaCompressor {
     public static byte[] compressByRawBlocks(BufferedImage target,
             byte[] targetEncoded, BufferedImage source, int blockSize)
                 throws IOException {
+        return compressByRawBlocks(target, targetEncoded, source, blockSize,
+                null, 1);
+    }
 
-        // If there's no image to compare to, or the images are in different
-        // sizes, we simply return the encoded target.
-        if (source == null
-                || (source.getWidth() != target.getWidth())
-                || (source.getHeight() != target.getHeight())) {
+    /**
+     * Compresses a target image based on a difference from a source image,
+     * using the block size and deflate settings of the given profile.
+     * @param target The image we want to compress.
+     * @param targetEncoded The image we want to compress in its png bytes
+     *                      representation.
+     * @param source The baseline image by which a compression will be
+     *               performed.
+     * @param profile The compression profile to use.
+     * @return The compression result.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static byte[] compressByRawBlocks(BufferedImage target,
+            byte[] targetEncoded, BufferedImage source,
+            CompressionProfile profile) throws IOException {
+
+        ArgumentGuard.notNull(targetEncoded, "targetEncoded");
+        ArgumentGuard.notNull(profile, "profile");
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        if (!compress(findDirtyBlocks(target, source,
+                profile.getBlockSize()), null, targetEncoded, profile, null, 1,
+                result)) {
             return Arrays.copyOf(targetEncoded, targetEncoded.length);
         }
 
-        // IMPORTANT: Notice that the pixel bytes are (A)RGB!
-        byte[] targetPixels =
-                ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
-        byte[] sourcePixels =
-                ((DataBufferByte) source.getRaster().getDataBuffer()).getData();
-
-        // The number of bytes comprising a pixel (depends if there's an
-        // Alpha channel).
-        int pixelLength = (target.getAlphaRaster() != null) ? 4 : 3;
-        Dimension imageSize = new Dimension(target.getWidth(),
-                                            target.getHeight());
-
-        // Calculating how many block columns and rows we've got.
-        int blockColumnsCount = (target.getWidth() / blockSize)
-                + ((target.getWidth() % blockSize) == 0 ? 0 : 1);
-        int blockRowsCount = (target.getHeight() / blockSize)
-                + ((target.getHeight() % blockSize) == 0 ? 0 : 1);
-        
-        // We'll use a stream for the compression.
-        ByteArrayOutputStream resultStream = new ByteArrayOutputStream();
-        CountingOutputStream resultCountingStream =
+        return result.toByteArray();
+    }
+
+    /**
+     * Compresses a target image based on a difference from a source image.
+     * When an executor service is given, the block grid is partitioned by
+     * channel and bands of block rows, each partition is compared and
+     * deflated independently on the executor, and the partitions are
+     * stitched into a single deflate stream. The decompressed payload is
+     * identical to the one created by the sequential compression.
+     * <p>
+     * Byte interleaved (A)BGR and int packed (A)RGB images are read
+     * directly from their rasters. Both produce the same output for the
+     * same pixels.
+     * <p>
+     * The blocks are compared before anything is deflated. If the delta is
+     * obviously larger than {@code targetEncoded} (see {@link
+     * DirtyBlockMap#decide(int)}), it is not compressed at all.
+     * @param target The image we want to compress.
+     * @param targetEncoded The image we want to compress in its png bytes
+     *                      representation.
+     * @param source The baseline image by which a compression will be
+     *               performed.
+     * @param blockSize How many pixels per block.
+     * @param executorService The executor on which the partitions are
+     *                        compressed (e.g., a {@link
+     *                        java.util.concurrent.ForkJoinPool}), or
+     *                        {@code null} to compress on the calling thread.
+     * @param parallelism The number of bands of block rows each channel is
+     *                    split into. Ignored if {@code executorService} is
+     *                    {@code null}.
+     * @return The compression result.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static byte[] compressByRawBlocks(BufferedImage target,
+            byte[] targetEncoded, BufferedImage source, int blockSize,
+            ExecutorService executorService, int parallelism)
+                throws IOException {
+
+        ArgumentGuard.notNull(targetEncoded, "targetEncoded");
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        if (!compress(findDirtyBlocks(target, source, blockSize,
+                executorService, parallelism), null, targetEncoded,
+                CompressionProfile.SMALLEST, executorService, parallelism,
+                result)) {
+            return Arrays.copyOf(targetEncoded, targetEncoded.length);
+        }
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Compresses a target image based on a difference from a source image,
+     * and writes the result directly to the given stream.
+     * <p>
+     * The compressed delta is staged in memory only up to the length of
+     * {@code targetEncoded}. As soon as it grows beyond that, the staged
+     * delta is dropped and {@code targetEncoded} is written instead.
+     * @param target The image we want to compress.
+     * @param targetEncoded The image we want to compress in its png bytes
+     *                      representation.
+     * @param source The baseline image by which a compression will be
+     *               performed.
+     * @param blockSize How many pixels per block.
+     * @param executorService The executor on which the partitions are
+     *                        compressed, or {@code null} to compress on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows each channel is
+     *                    split into. Ignored if {@code executorService} is
+     *                    {@code null}.
+     * @param outputStream The stream to which the compression result is
+     *                     written. Not closed by this method.
+     * @return {@code true} if the compressed delta was written, or {@code
+     * false} if {@code targetEncoded} was written.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static boolean compressByRawBlocks(BufferedImage target,
+            byte[] targetEncoded, BufferedImage source, int blockSize,
+            ExecutorService executorService, int parallelism,
+            OutputStream outputStream) throws IOException {
+
+        ArgumentGuard.notNull(targetEncoded, "targetEncoded");
+
+        return compressByRawBlocks(findDirtyBlocks(target, source, blockSize,
+                executorService, parallelism), targetEncoded,
+                executorService, parallelism, outputStream);
+    }
+
+    /**
+     * Compresses a target image based on a difference from a source image,
+     * and writes the result directly to the given channel.
+     * @see #compressByRawBlocks(BufferedImage, byte[], BufferedImage, int,
+     * ExecutorService, int, OutputStream)
+     * @param target The image we want to compress.
+     * @param targetEncoded The image we want to compress in its png bytes
+     *                      representation.
+     * @param source The baseline image by which a compression will be
+     *               performed.
+     * @param blockSize How many pixels per block.
+     * @param executorService The executor on which the partitions are
+     *                        compressed, or {@code null} to compress on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows each channel is
+     *                    split into. Ignored if {@code executorService} is
+     *                    {@code null}.
+     * @param channel The channel to which the compression result is
+     *                written. Not closed by this method.
+     * @return {@code true} if the compressed delta was written, or {@code
+     * false} if {@code targetEncoded} was written.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static boolean compressByRawBlocks(BufferedImage target,
+            byte[] targetEncoded, BufferedImage source, int blockSize,
+            ExecutorService executorService, int parallelism,
+            WritableByteChannel channel) throws IOException {
+
+        ArgumentGuard.notNull(channel, "channel");
+
+        // Writes to the channel wrap the written array, without copying it.
+        return compressByRawBlocks(target, targetEncoded, source, blockSize,
+                executorService, parallelism,
+                Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Compresses the blocks found by {@link #findDirtyBlocks(BufferedImage,
+     * BufferedImage, int, ExecutorService, int)}, and writes the result
+     * directly to the given stream.
+     * @param dirtyBlocks The blocks in which the target differs from the
+     *                    source, or {@code null} if there's no source to
+     *                    compress by.
+     * @param targetEncoded The target image in its png bytes representation.
+     *                      May be {@code null} if there's a source to
+     *                      compress by and the caller already decided that
+     *                      the delta is smaller (e.g., it's bound to be, see
+     *                      {@link #isDeltaBelowMinEncodedLength(DirtyBlockMap,
+     *                      String, ExecutorService, int)}), in which case
+     *                      the delta is always written.
+     * @param executorService The executor on which the partitions are
+     *                        compressed, or {@code null} to compress on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows each channel is
+     *                    split into. Ignored if {@code executorService} is
+     *                    {@code null}.
+     * @param outputStream The stream to which the compression result is
+     *                     written. Not closed by this method.
+     * @return {@code true} if the compressed delta was written, or {@code
+     * false} if {@code targetEncoded} was written.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static boolean compressByRawBlocks(DirtyBlockMap dirtyBlocks,
+            byte[] targetEncoded, ExecutorService executorService,
+            int parallelism, OutputStream outputStream) throws IOException {
+        return compressByRawBlocks(dirtyBlocks, targetEncoded,
+                CompressionProfile.SMALLEST, executorService, parallelism,
+                outputStream);
+    }
+
+    /**
+     * Compresses the blocks found by {@link #findDirtyBlocks(BufferedImage,
+     * BufferedImage, int, ExecutorService, int)} with the deflate level and
+     * strategy of the given profile, and writes the result directly to the
+     * given stream.
+     * @see #compressByRawBlocks(DirtyBlockMap, byte[], ExecutorService, int,
+     * OutputStream)
+     * @param dirtyBlocks The blocks in which the target differs from the
+     *                    source, or {@code null} if there's no source to
+     *                    compress by.
+     * @param targetEncoded The target image in its png bytes representation.
+     *                      May be {@code null} if there's a source to
+     *                      compress by and the delta is known to be smaller,
+     *                      in which case the delta is always written.
+     * @param profile The profile whose deflate settings are used. Its block
+     *                size is ignored, since the blocks were already found.
+     * @param executorService The executor on which the partitions are
+     *                        compressed, or {@code null} to compress on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows each channel is
+     *                    split into. Ignored if {@code executorService} is
+     *                    {@code null}.
+     * @param outputStream The stream to which the compression result is
+     *                     written. Not closed by this method.
+     * @return {@code true} if the compressed delta was written, or {@code
+     * false} if {@code targetEncoded} was written.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static boolean compressByRawBlocks(DirtyBlockMap dirtyBlocks,
+            byte[] targetEncoded, CompressionProfile profile,
+            ExecutorService executorService, int parallelism,
+            OutputStream outputStream) throws IOException {
+        return compressByRawBlocks(dirtyBlocks, null, targetEncoded, profile,
+                executorService, parallelism, outputStream);
+    }
+
+    /**
+     * Compresses the blocks found by {@link #findDirtyBlocks(BufferedImage,
+     * BufferedImage, int, ExecutorService, int)} as a delta from a source
+     * image the server already knows by an ID, and writes the result
+     * directly to the given stream.
+     * <p>
+     * If {@code targetEncoded} is {@code null} (i.e., the delta is known to
+     * be smaller), the delta is deflated straight into the stream.
+     * Otherwise it is staged in memory, since it's dropped if it grows
+     * beyond {@code targetEncoded}.
+     * <p>
+     * The ID is written to the source ID field of the header, so the server
+     * can resolve the source image even if it wasn't the previous image
+     * uploaded in the session (e.g., an image uploaded by a previous run).
+     * @see #compressByRawBlocks(DirtyBlockMap, byte[], CompressionProfile,
+     * ExecutorService, int, OutputStream)
+     * @param dirtyBlocks The blocks in which the target differs from the
+     *                    source, or {@code null} if there's no source to
+     *                    compress by.
+     * @param sourceId The ID by which the server knows the source image, or
+     *                 {@code null} if the source is the previous image
+     *                 uploaded in the session.
+     * @param targetEncoded The target image in its png bytes representation.
+     *                      May be {@code null} if there's a source to
+     *                      compress by and the delta is known to be smaller,
+     *                      in which case the delta is always written.
+     * @param profile The profile whose deflate settings are used.
+     * @param executorService The executor on which the partitions are
+     *                        compressed, or {@code null} to compress on the
+     *                        calling thread.
+     * @param parallelism The number of bands of block rows each channel is
+     *                    split into. Ignored if {@code executorService} is
+     *                    {@code null}.
+     * @param outputStream The stream to which the compression result is
+     *                     written. Not closed by this method.
+     * @return {@code true} if the compressed delta was written, or {@code
+     * false} if {@code targetEncoded} was written.
+     * @throws java.io.IOException If there was a problem reading/writing
+     * from/to the streams which are created during the process.
+     */
+    public static boolean compressByRawBlocks(DirtyBlockMap dirtyBlocks,
+            String sourceId, byte[] targetEncoded, CompressionProfile profile,
+            ExecutorService executorService, int parallelism,
+            OutputStream outputStream) throws IOException {
+
+        ArgumentGuard.notNull(profile, "profile");
+        ArgumentGuard.notNull(outputStream, "outputStream");
+        if (targetEncoded == null) {
+            ArgumentGuard.notNull(dirtyBlocks, "dirtyBlocks");
+        }
+
+        if (targetEncoded == null) {
+            // There's nothing to fall back to, so the delta is always
+            // written in full.
+            return compress(dirtyBlocks, sourceId, null, profile,
+                    executorService, parallelism, outputStream);
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        if (!compress(dirtyBlocks, sourceId, targetEncoded, profile,
+                executorService, parallelism, result)) {
+            outputStream.write(targetEncoded);
+            return false;
+        }
+
+        result.writeTo(outputStream);
+        return true;
+    }
+
+    /**
+     * Compresses the dirty blocks, unless the delta is obviously larger than
+     * the encoded target.
+     * @param resultStream The stream to which the compression result is
+     *                     written. Holds a partial result if the compression
+     *                     is aborted.
+     * @return {@code false} if there is no source to compress by, or if the
+     * result would be larger than {@code targetEncoded}, {@code true}
+     * otherwise.
+     */
+    private static boolean compress(DirtyBlockMap dirtyBlocks,
+            String sourceId, byte[] targetEncoded, CompressionProfile profile,
+            ExecutorService executorService, int parallelism,
+            OutputStream resultStream) throws IOException {
+
+        ArgumentGuard.greaterThanZero(parallelism, "parallelism");
+
+        // If there's no image to compare to, or the images are in different
+        // sizes, we simply use the encoded target.
+        if (dirtyBlocks == null) {
+            return false;
+        }
+
+        int maxLength = Integer.MAX_VALUE;
+        if (targetEncoded != null) {
+            // The decision is only an estimate, so it only skips deflating
+            // if there's an encoded target to fall back to.
+            maxLength = targetEncoded.length;
+            if (dirtyBlocks.decide(maxLength) == CompressionDecision.ENCODED) {
+                return false;
+            }
+        }
+
+        if (executorService == null) {
+            return compressSequentially(dirtyBlocks, sourceId, maxLength,
+                    profile, resultStream);
+        }
+
+        return compressInParallel(dirtyBlocks, sourceId, maxLength, profile,
+                executorService, parallelism, resultStream);
+    }
+
+    /**
+     * Compresses the dirty blocks of all channels on the calling thread.
+     * @return {@code false} if the compression result is larger than {@code
+     * maxLength}, {@code true} otherwise.
+     */
+    private static boolean compressSequentially(DirtyBlockMap dirtyBlocks,
+            String sourceId, final int maxLength, CompressionProfile profile,
+            OutputStream resultStream) throws IOException {
+
+        int blockRowsCount = dirtyBlocks.getBlockRowsCount();
+
+        final CountingOutputStream resultCountingStream =
                 new CountingOutputStream(resultStream);
-        // Since we need to write "short" and other variations.
-        DataOutputStream resultDataOutputStream =
-                new DataOutputStream(resultCountingStream);
         // This will be used for doing actual data compression
-        DeflaterOutputStream compressed =
-                new DeflaterOutputStream(resultCountingStream,
-                        new Deflater(Deflater.BEST_COMPRESSION,true));
+        Deflater deflater = profile.createDeflater(true);
+        try {
+            DeflaterOutputStream compressed =
+                    new DeflaterOutputStream(resultCountingStream, deflater);
 
-        DataOutputStream compressedDos = new DataOutputStream(compressed);
+            // Writing the header
+            writeHeader(resultCountingStream, sourceId,
+                    dirtyBlocks.getBlockSize());
 
-        // Writing the header
-        resultStream.write(PREAMBLE, 0, PREAMBLE.length);
-        resultStream.write(COMPRESS_BY_RAW_BLOCKS_FORMAT);
-        // since we don't have a source ID, we write 0 length (Big endian).
-        resultDataOutputStream.writeShort(0);
+            OutputSizeCheck sizeCheck = new OutputSizeCheck() {
+                public boolean isExceeded() {
+                    return resultCountingStream.getBytesCount() > maxLength;
+                }
+            };
 
-        // Writing the block size (Big endian)
-        resultDataOutputStream.writeShort(blockSize);
+            for (int channel = 0; channel < PixelBlocks.CHANNELS_COUNT;
+                    ++channel) {
+                if (!writeChannelBlocks(compressed, dirtyBlocks, channel, 0,
+                        blockRowsCount, sizeCheck)) {
+                    return false;
+                }
+            }
+            compressed.finish(); // flushing the compression.
 
-        CompareAndCopyBlockChannelDataResult compareResult;
-        for (int channel = 0; channel < 3; ++channel) {
-
-            // The image is RGB, so all that's left is to skip the Alpha
-            // channel if there is one.
-            int actualChannelIndex = (pixelLength == 4) ? channel + 1 : channel;
-
-            int blockNumber = 0;
-            for (int blockRow = 0; blockRow < blockRowsCount; ++blockRow) {
-                for (int blockColumn = 0; blockColumn < blockColumnsCount;
-                        ++blockColumn) {
-
-                    compareResult = CompareAndCopyBlockChannelData
-                            (sourcePixels, targetPixels, imageSize,
-                                    pixelLength, blockSize, blockColumn,
-                                    blockRow, actualChannelIndex);
-
-                    if (!compareResult.getIsIdentical()) {
-                        compressed.write(channel);
-                        compressedDos.writeInt(blockNumber); // Big endian
-                        byte[] channelBytes = compareResult.getBuffer();
-                        compressed.write(channelBytes, 0, channelBytes.length);
-
-                        // If the number of bytes already written is greater
-                        // then the number of bytes for the uncompressed
-                        // target, we just return the uncompressed target.
-                        if (resultCountingStream.getBytesCount()
-                            > targetEncoded.length) {
-                            compressedDos.close();
-                            return Arrays.copyOf(targetEncoded,
-                                                    targetEncoded.length);
-                        }
-                    }
+            if (sizeCheck.isExceeded()) {
+                return false;
+            }
+        } finally {
+            deflater.end();
+        }
 
-                    ++blockNumber;
+        return true;
+    }
+
+    /**
+     * Compresses the dirty blocks of each channel in bands of block rows on
+     * the given executor.
+     * <p>
+     * Each channel's band is deflated by its own deflater and ends with a
+     * sync flush, so the (byte aligned) bands can simply be concatenated.
+     * The stream is then terminated by an empty final block.
+     * @return {@code false} if the compression result is larger than {@code
+     * maxLength}, {@code true} otherwise.
+     */
+    private static boolean compressInParallel(final DirtyBlockMap dirtyBlocks,
+            String sourceId, final int maxLength,
+            final CompressionProfile profile, ExecutorService executorService,
+            int parallelism, OutputStream resultStream) throws IOException {
+
+        int blockRowsCount = dirtyBlocks.getBlockRowsCount();
+        int bandRowsCount = getBandRowsCount(blockRowsCount, parallelism);
+
+        CountingOutputStream resultCountingStream =
+                new CountingOutputStream(resultStream);
+        writeHeader(resultCountingStream, sourceId,
+                dirtyBlocks.getBlockSize());
+
+        // The number of bytes written so far by all bands, including the
+        // header.
+        final AtomicLong bytesCount =
+                new AtomicLong(resultCountingStream.getBytesCount());
+        final AtomicBoolean isAborted = new AtomicBoolean(false);
+
+        List<Future<byte[]>> bands = new ArrayList<Future<byte[]>>();
+        try {
+            for (int channel = 0; channel < PixelBlocks.CHANNELS_COUNT;
+                    ++channel) {
+                for (int firstBlockRow = 0; firstBlockRow < blockRowsCount;
+                        firstBlockRow += bandRowsCount) {
+
+                    final int bandChannel = channel;
+                    final int bandFirstBlockRow = firstBlockRow;
+                    final int bandLastBlockRow =
+                            Math.min(firstBlockRow + bandRowsCount,
+                                    blockRowsCount);
+
+                    bands.add(executorService.submit(
+                            new Callable<byte[]>() {
+                                public byte[] call() throws IOException {
+                                    return compressBand(dirtyBlocks,
+                                            bandChannel, bandFirstBlockRow,
+                                            bandLastBlockRow, maxLength,
+                                            profile, bytesCount, isAborted);
+                                }
+                            }));
                 }
             }
+
+            for (Future<byte[]> band : bands) {
+                byte[] bandBytes = getResult(band);
+                if (bandBytes == null) {
+                    return false;
+                }
+                resultCountingStream.write(bandBytes);
+            }
+        } finally {
+            // Stop bands which are still running, if any.
+            isAborted.set(true);
+            for (Future<byte[]> band : bands) {
+                band.cancel(false);
+            }
         }
-        compressedDos.close(); // flushing + closing the compression.
 
-        if (resultCountingStream.getBytesCount() > targetEncoded.length) {
-            return Arrays.copyOf(targetEncoded, targetEncoded.length);
+        resultCountingStream.write(EMPTY_FINAL_BLOCK);
+
+        return resultCountingStream.getBytesCount() <= maxLength;
+    }
+
+    /**
+     * Compresses the dirty blocks of a single channel in a band of block
+     * rows.
+     * @return The deflated (sync flushed) band bytes, or {@code null} if the
+     * compression was aborted.
+     */
+    private static byte[] compressBand(DirtyBlockMap dirtyBlocks,
+            int channel, int firstBlockRow, int lastBlockRow,
+            final int maxLength, CompressionProfile profile,
+            final AtomicLong bytesCount, final AtomicBoolean isAborted)
+            throws IOException {
+
+        if (isAborted.get()) {
+            return null;
+        }
+
+        final ByteArrayOutputStream bandStream = new ByteArrayOutputStream();
+        Deflater deflater = profile.createDeflater(true);
+        try {
+            // Sync flush, so the band ends on a byte boundary.
+            DeflaterOutputStream compressed =
+                    new DeflaterOutputStream(bandStream, deflater, 512, true);
+
+            OutputSizeCheck sizeCheck = new OutputSizeCheck() {
+                private long reportedCount = 0;
+
+                public boolean isExceeded() {
+                    long count = bandStream.size();
+                    long total =
+                            bytesCount.addAndGet(count - reportedCount);
+                    reportedCount = count;
+                    return isAborted.get() || total > maxLength;
+                }
+            };
+
+            if (!writeChannelBlocks(compressed, dirtyBlocks, channel,
+                    firstBlockRow, lastBlockRow, sizeCheck)) {
+                isAborted.set(true);
+                return null;
+            }
+
+            compressed.flush();
+            if (sizeCheck.isExceeded()) {
+                isAborted.set(true);
+                return null;
+            }
+        } finally {
+            deflater.end();
         }
 
-        return resultStream.toByteArray();
+        return bandStream.toByteArray();
     }
 
     /**
@@ -0,0 +1,267 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import com.applitools.eyes.ReferenceImageCache;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reconstructs images compressed by {@link ImageDeltaCompressor}, i.e., does
+ * what the server does with an uploaded screenshot. Used for verifying
+ * compression results and measuring compression ratios offline.
+ */
+public class ImageDeltaDecompressor {
+
+    // Preamble + format (1 byte).
+    private static final int FORMAT_HEADER_LENGTH =
+            ImageDeltaCompressor.PREAMBLE.length + 1;
+
+    /**
+     * @param compressed A compression result.
+     * @return Whether the compression result is a delta in the raw blocks
+     * format (as opposed to an encoded image).
+     */
+    public static boolean isCompressedByRawBlocks(byte[] compressed) {
+        ArgumentGuard.notNull(compressed, "compressed");
+
+        return compressed.length >= FORMAT_HEADER_LENGTH
+                && Arrays.equals(ImageDeltaCompressor.PREAMBLE,
+                    Arrays.copyOf(compressed,
+                            ImageDeltaCompressor.PREAMBLE.length))
+                && compressed[FORMAT_HEADER_LENGTH - 1]
+                    == ImageDeltaCompressor.COMPRESS_BY_RAW_BLOCKS_FORMAT;
+    }
+
+    /**
+     * Reads the ID of the source image a delta was compressed by.
+     * @param compressed A compression result.
+     * @return The source ID, or {@code null} if the result is not a delta,
+     * or if it is a delta from the previous image uploaded in the session.
+     * @throws IOException If the header is truncated.
+     */
+    public static String getSourceId(byte[] compressed) throws IOException {
+        if (!isCompressedByRawBlocks(compressed)) {
+            return null;
+        }
+
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(
+                compressed, FORMAT_HEADER_LENGTH,
+                compressed.length - FORMAT_HEADER_LENGTH));
+        String sourceId = readSourceId(header);
+        return sourceId.length() > 0 ? sourceId : null;
+    }
+
+    /**
+     * Reconstructs a compressed image.
+     * @see #decompress(BufferedImage, InputStream)
+     * @param source The image by which the delta was compressed. May be
+     *               {@code null} if {@code compressed} is an encoded image.
+     * @param compressed A compression result.
+     * @return The reconstructed image.
+     * @throws IOException If the compression result is corrupt.
+     */
+    public static BufferedImage decompress(BufferedImage source,
+            byte[] compressed) throws IOException {
+        ArgumentGuard.notNull(compressed, "compressed");
+
+        return decompress(source, new ByteArrayInputStream(compressed));
+    }
+
+    /**
+     * Reconstructs a compressed image, resolving the image a delta was
+     * compressed by from its source ID, as the server does. Useful for a
+     * local stand-in server, which knows the images uploaded by previous
+     * runs through a reference image cache.
+     * @see #decompress(BufferedImage, InputStream)
+     * @param previous The previous image uploaded in the session, by which
+     *                 a delta without a source ID was compressed, or {@code
+     *                 null} if there's none.
+     * @param referenceImages Resolves the source IDs of deltas to images.
+     * @param compressed A compression result.
+     * @return The reconstructed image.
+     * @throws IOException If the compression result is corrupt, or if its
+     * source image is unknown.
+     */
+    public static BufferedImage decompress(BufferedImage previous,
+            ReferenceImageCache referenceImages, byte[] compressed)
+            throws IOException {
+        ArgumentGuard.notNull(referenceImages, "referenceImages");
+
+        BufferedImage source = previous;
+        String sourceId = getSourceId(compressed);
+        if (sourceId != null) {
+            source = referenceImages.getImage(sourceId);
+            if (source == null) {
+                throw new IOException("Unknown source image: " + sourceId);
+            }
+        }
+        return decompress(source, compressed);
+    }
+
+    /**
+     * Reconstructs a compressed image, inflating the delta as it is read.
+     * <p>
+     * A delta is applied to a copy of the source image, whose type is {@code
+     * TYPE_4BYTE_ABGR} if the source has alpha, or {@code TYPE_3BYTE_BGR}
+     * otherwise. Alpha is taken from the source, since it is not part of the
+     * delta. An encoded image is simply decoded.
+     * @param source The image by which the delta was compressed. May be
+     *               {@code null} if {@code compressed} is an encoded image.
+     * @param compressed The stream from which the compression result is
+     *                   read. Not closed by this method.
+     * @return The reconstructed image.
+     * @throws IOException If the compression result is corrupt, or if there
+     * was a problem reading from the stream.
+     */
+    public static BufferedImage decompress(BufferedImage source,
+            InputStream compressed) throws IOException {
+        ArgumentGuard.notNull(compressed, "compressed");
+
+        BufferedInputStream compressedStream =
+                new BufferedInputStream(compressed);
+        compressedStream.mark(FORMAT_HEADER_LENGTH);
+        byte[] formatHeader = new byte[FORMAT_HEADER_LENGTH];
+        int formatHeaderLength = readFully(compressedStream, formatHeader);
+        if (!isCompressedByRawBlocks(Arrays.copyOf(formatHeader,
+                formatHeaderLength))) {
+            // Not a delta, so this is the encoded target.
+            compressedStream.reset();
+            BufferedImage image = ImageIO.read(compressedStream);
+            if (image == null) {
+                throw new IOException("Unknown compression format");
+            }
+            return image;
+        }
+
+        ArgumentGuard.notNull(source, "source");
+
+        DataInputStream header = new DataInputStream(compressedStream);
+        readSourceId(header);
+        int blockSize = header.readShort();
+        if (blockSize <= 0) {
+            throw new IOException("Invalid block size: " + blockSize);
+        }
+
+        BufferedImage target = copy(source);
+        Inflater inflater = new Inflater(true);
+        try {
+            applyBlocks(new DataInputStream(new InflaterInputStream(
+                    compressedStream, inflater)), target, blockSize);
+        } finally {
+            inflater.end();
+        }
+        return target;
+    }
+
+    /**
+     * Reads the source ID field of the raw blocks header.
+     * @param header The header, positioned at the source ID field.
+     * @return The source ID, which is empty if there's none.
+     * @throws IOException If the header is truncated.
+     */
+    private static String readSourceId(DataInputStream header)
+            throws IOException {
+        byte[] sourceIdBytes = new byte[header.readShort()];
+        header.readFully(sourceIdBytes);
+        return new String(sourceIdBytes, "UTF-8");
+    }
+
+    /**
+     * Copies the pixels of an image to a new byte interleaved image.
+     * @param image The image to copy.
+     * @return The copy.
+     */
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(),
+                image.getHeight(), (image.getAlphaRaster() != null) ?
+                        BufferedImage.TYPE_4BYTE_ABGR :
+                        BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = copy.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    /**
+     * Reads block records until the end of the (inflated) stream, and copies
+     * each record's channel bytes to the target.
+     * @param records The inflated records.
+     * @param target The byte interleaved image to which the blocks are
+     *               copied.
+     * @param blockSize How many pixels per block.
+     * @throws IOException If a record is corrupt or truncated.
+     */
+    private static void applyBlocks(DataInputStream records,
+            BufferedImage target, int blockSize) throws IOException {
+        int width = target.getWidth();
+        int height = target.getHeight();
+        int blockColumnsCount = (width + blockSize - 1) / blockSize;
+        int blockRowsCount = (height + blockSize - 1) / blockSize;
+
+        byte[] pixels = ((DataBufferByte) target.getRaster().getDataBuffer())
+                .getData();
+        int pixelLength = (target.getAlphaRaster() != null) ? 4 : 3;
+        // (A)BGR, so only alpha needs to be skipped.
+        int firstChannelOffset = pixelLength - PixelBlocks.CHANNELS_COUNT;
+        int stride = width * pixelLength;
+        byte[] blockBuffer = new byte[blockSize * blockSize];
+
+        int channel;
+        while ((channel = records.read()) != -1) {
+            int blockNumber = records.readInt();
+            if (channel >= PixelBlocks.CHANNELS_COUNT || blockNumber < 0
+                    || blockNumber >= blockColumnsCount * blockRowsCount) {
+                throw new IOException(String.format(
+                        "Invalid block record (channel: %d, block: %d)",
+                        channel, blockNumber));
+            }
+
+            int blockColumn = blockNumber % blockColumnsCount;
+            int blockRow = blockNumber / blockColumnsCount;
+            int actualBlockWidth = Math.min(width - blockColumn * blockSize,
+                    blockSize);
+            int actualBlockHeight = Math.min(height - blockRow * blockSize,
+                    blockSize);
+            records.readFully(blockBuffer, 0,
+                    actualBlockWidth * actualBlockHeight);
+
+            int offset = (blockRow * blockSize * stride)
+                    + (blockColumn * blockSize * pixelLength)
+                    + firstChannelOffset + channel;
+            int bufferOffset = 0;
+            for (int h = 0; h < actualBlockHeight; ++h) {
+                int i = offset;
+                for (int w = 0; w < actualBlockWidth; ++w) {
+                    pixels[i] = blockBuffer[bufferOffset++];
+                    i += pixelLength;
+                }
+                offset += stride;
+            }
+        }
+    }
+
+    /**
+     * Reads from a stream until the buffer is full or the stream ends.
+     * @return The number of bytes read.
+     */
+    private static int readFully(InputStream stream, byte[] buffer)
+            throws IOException {
+        int length = 0;
+        int count;
+        while (length < buffer.length && (count = stream.read(buffer, length,
+                buffer.length - length)) != -1) {
+            length += count;
+        }
+        return length;
+    }
+}
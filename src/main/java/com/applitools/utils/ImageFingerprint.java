@@ -0,0 +1,222 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A cheap fingerprint of an image's pixels: a 64 bit hash of each square
+ * tile of the image. Comparing fingerprints tells whether (and roughly
+ * where) two images differ, without keeping the images themselves.
+ * <p>
+ * Byte interleaved and int packed images are hashed as they are, without
+ * being converted, so fingerprints are only comparable between images of
+ * the same type. Images with a palette are normalized first, since their
+ * pixels are only indices into the palette.
+ */
+public class ImageFingerprint {
+
+    /**
+     * The default tile size, in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    // Multiplier of the hash (the 64 bit FNV prime). A multiplication only
+    // carries bits upwards, so each step also folds the high bits down,
+    // otherwise a word's high bits would barely affect the hash's low bits.
+    private static final long HASH_PRIME = 0x100000001B3L;
+    private static final int HASH_SHIFT = 29;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final long[] tileHashes;
+
+    private ImageFingerprint(int width, int height, int tileSize,
+                             long[] tileHashes) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tileHashes = tileHashes;
+    }
+
+    /**
+     * @param image The image to fingerprint.
+     * @return The fingerprint of the image, with the default tile size.
+     */
+    public static ImageFingerprint of(BufferedImage image) {
+        return of(image, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param image The image to fingerprint. Images which are neither byte
+     *              interleaved nor int packed, or which have a palette, are
+     *              normalized first (see {@link
+     *              ImageUtils#normalize(BufferedImage)}).
+     * @param tileSize The size of the hashed tiles, in pixels.
+     * @return The fingerprint of the image.
+     */
+    public static ImageFingerprint of(BufferedImage image, int tileSize) {
+        ArgumentGuard.notNull(image, "image");
+        ArgumentGuard.greaterThanZero(tileSize, "tileSize");
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int tileColumnsCount = (width / tileSize)
+                + ((width % tileSize) == 0 ? 0 : 1);
+        int tileRowsCount = (height / tileSize)
+                + ((height % tileSize) == 0 ? 0 : 1);
+        long[] tileHashes = new long[tileColumnsCount * tileRowsCount];
+
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        if (sampleModel instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferInt) {
+            hashIntTiles(raster, tileSize, tileColumnsCount, tileHashes);
+        } else {
+            if (!(sampleModel instanceof PixelInterleavedSampleModel)
+                    || !(raster.getDataBuffer() instanceof DataBufferByte)
+                    || image.getColorModel() instanceof IndexColorModel) {
+                raster = ImageUtils.normalize(image).getRaster();
+            }
+            hashByteTiles(raster, tileSize, tileColumnsCount, tileHashes);
+        }
+
+        return new ImageFingerprint(width, height, tileSize, tileHashes);
+    }
+
+    /**
+     * Hashes the tiles of a byte interleaved raster, row by row.
+     */
+    private static void hashByteTiles(Raster raster, int tileSize,
+            int tileColumnsCount, long[] tileHashes) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        PixelInterleavedSampleModel sampleModel =
+                (PixelInterleavedSampleModel) raster.getSampleModel();
+        int pixelLength = sampleModel.getPixelStride();
+        int stride = sampleModel.getScanlineStride();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        // Byte order doesn't matter for hashing, so the native one is used.
+        ByteBuffer words = ByteBuffer.wrap(data)
+                .order(ByteOrder.nativeOrder());
+
+        // The image may be a sub image, at a translation of its parent's
+        // data.
+        int rowOffset = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX() * pixelLength;
+        for (int y = 0; y < height; ++y) {
+            int tileRowStart = (y / tileSize) * tileColumnsCount;
+            for (int tileColumn = 0; tileColumn < tileColumnsCount;
+                    ++tileColumn) {
+                int start = rowOffset + tileColumn * tileSize * pixelLength;
+                int end = start + Math.min(tileSize,
+                        width - tileColumn * tileSize) * pixelLength;
+
+                long hash = tileHashes[tileRowStart + tileColumn];
+                int i = start;
+                for (int wordsEnd = end - 7; i < wordsEnd; i += 8) {
+                    hash = (hash ^ words.getLong(i)) * HASH_PRIME;
+                    hash ^= hash >>> HASH_SHIFT;
+                }
+                for (; i < end; ++i) {
+                    hash = (hash ^ data[i]) * HASH_PRIME;
+                    hash ^= hash >>> HASH_SHIFT;
+                }
+                tileHashes[tileRowStart + tileColumn] = hash;
+            }
+            rowOffset += stride;
+        }
+    }
+
+    /**
+     * Hashes the tiles of an int packed raster (e.g., {@code TYPE_INT_RGB}),
+     * row by row. Only the bits of the pixels' samples are hashed.
+     */
+    private static void hashIntTiles(Raster raster, int tileSize,
+            int tileColumnsCount, long[] tileHashes) {
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        SinglePixelPackedSampleModel sampleModel =
+                (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int stride = sampleModel.getScanlineStride();
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        // E.g., the unused high byte of TYPE_INT_RGB pixels is ignored.
+        int samplesMask = 0;
+        for (int bitMask : sampleModel.getBitMasks()) {
+            samplesMask |= bitMask;
+        }
+
+        // The image may be a sub image, at a translation of its parent's
+        // data.
+        int rowOffset = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        for (int y = 0; y < height; ++y) {
+            int tileRowStart = (y / tileSize) * tileColumnsCount;
+            for (int tileColumn = 0; tileColumn < tileColumnsCount;
+                    ++tileColumn) {
+                int start = rowOffset + tileColumn * tileSize;
+                int end = start + Math.min(tileSize,
+                        width - tileColumn * tileSize);
+
+                long hash = tileHashes[tileRowStart + tileColumn];
+                for (int i = start; i < end; ++i) {
+                    hash = (hash ^ (data[i] & samplesMask)) * HASH_PRIME;
+                    hash ^= hash >>> HASH_SHIFT;
+                }
+                tileHashes[tileRowStart + tileColumn] = hash;
+            }
+            rowOffset += stride;
+        }
+    }
+
+    /**
+     * @param other The fingerprint to compare to, or {@code null}.
+     * @return Whether both fingerprints are of images of the same size and
+     * pixels (up to hash collisions).
+     */
+    public boolean matches(ImageFingerprint other) {
+        return getChangedTilesCount(other) == 0;
+    }
+
+    /**
+     * @param other The fingerprint to compare to, or {@code null}.
+     * @return The number of tiles which differ between the fingerprints, or
+     * the number of tiles of this fingerprint if they aren't comparable
+     * (i.e., {@code other} is {@code null}, or the images are of different
+     * sizes or fingerprinted with different tile sizes).
+     */
+    public int getChangedTilesCount(ImageFingerprint other) {
+        if (other == null || other.width != width || other.height != height
+                || other.tileSize != tileSize) {
+            return tileHashes.length;
+        }
+
+        int changedTilesCount = 0;
+        for (int i = 0; i < tileHashes.length; ++i) {
+            if (tileHashes[i] != other.tileHashes[i]) {
+                ++changedTilesCount;
+            }
+        }
+        return changedTilesCount;
+    }
+
+    /**
+     * @return The number of tiles hashed.
+     */
+    public int getTilesCount() {
+        return tileHashes.length;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of images, keyed by their size and type, so the pixel buffers of
+ * screenshots which are no longer needed are reused for new screenshots of
+ * the same size (e.g., when all the screenshots of a test are of the same
+ * viewport), instead of allocating new multi-megabyte buffers.
+ * <p>
+ * Pooled images are handed out as they were released, i.e., their pixels
+ * are not cleared. An image must not be used after it was released.
+ * <p>
+ * The pool is thread safe, and can be shared between {@code Eyes}
+ * instances.
+ */
+@SuppressWarnings("UnusedDeclaration")
+public class ImagePool {
+
+    private final int maxImagesCount;
+    private final Map<String, Deque<BufferedImage>> images;
+    private int imagesCount;
+
+    /**
+     * @param maxImagesCount The maximum number of images kept in the pool,
+     *                       of all sizes. Released images which exceed it
+     *                       are left to the garbage collector.
+     */
+    public ImagePool(int maxImagesCount) {
+        ArgumentGuard.greaterThanZero(maxImagesCount, "maxImagesCount");
+
+        this.maxImagesCount = maxImagesCount;
+        images = new HashMap<String, Deque<BufferedImage>>();
+        imagesCount = 0;
+    }
+
+    /**
+     * Gets an image from the pool, or creates one if there's no pooled image
+     * of the given size and type. Images of the indexed types ({@code
+     * TYPE_BYTE_BINARY} and {@code TYPE_BYTE_INDEXED}) are never pooled,
+     * since their palette is not part of their type, so they are always
+     * created anew, with the default palette.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param type One of the predefined {@code BufferedImage} types.
+     * @return An image of the given size and type, with undefined pixels.
+     */
+    public BufferedImage acquire(int width, int height, int type) {
+        ArgumentGuard.greaterThanZero(width, "width");
+        ArgumentGuard.greaterThanZero(height, "height");
+
+        synchronized (this) {
+            Deque<BufferedImage> pooled = images.get(getKey(width, height,
+                    type));
+            if (pooled != null && !pooled.isEmpty()) {
+                --imagesCount;
+                return pooled.pop();
+            }
+        }
+
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Returns an image to the pool. Images which can't be reused as a whole
+     * (e.g., sub images, or images of a custom or an indexed type) are
+     * ignored.
+     * @param image The image to return, or {@code null}.
+     */
+    public void release(BufferedImage image) {
+        if (image == null || !isPoolable(image)) {
+            return;
+        }
+
+        String key = getKey(image.getWidth(), image.getHeight(),
+                image.getType());
+        synchronized (this) {
+            if (imagesCount >= maxImagesCount) {
+                return;
+            }
+
+            Deque<BufferedImage> pooled = images.get(key);
+            if (pooled == null) {
+                pooled = new ArrayDeque<BufferedImage>();
+                images.put(key, pooled);
+            }
+            // An image released twice must not be handed out twice.
+            for (BufferedImage pooledImage : pooled) {
+                if (pooledImage == image) {
+                    return;
+                }
+            }
+            pooled.push(image);
+            ++imagesCount;
+        }
+    }
+
+    /**
+     * Removes all the images from the pool.
+     */
+    public synchronized void clear() {
+        images.clear();
+        imagesCount = 0;
+    }
+
+    /**
+     * @return The number of images currently in the pool.
+     */
+    public synchronized int getImagesCount() {
+        return imagesCount;
+    }
+
+    private static String getKey(int width, int height, int type) {
+        return width + "x" + height + "/" + type;
+    }
+
+    /**
+     * @param image The image to check.
+     * @return Whether an image of the same size and type as the given image,
+     * taken from a pool, is interchangeable with it (i.e., the image is not
+     * of a custom type, and has no palette of its own).
+     */
+    static boolean isPoolableType(BufferedImage image) {
+        return image.getType() != BufferedImage.TYPE_CUSTOM
+                && !(image.getColorModel() instanceof IndexColorModel);
+    }
+
+    /**
+     * @param image The image to check.
+     * @return Whether the image owns its whole raster, as an image created by
+     * {@link #acquire(int, int, int)} does.
+     */
+    private static boolean isPoolable(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return isPoolableType(image)
+                && raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import com.applitools.eyes.EyesException;
+
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Rotates images by right angles, moving pixels between rasters by index
+ * (no interpolation). Byte interleaved and int packed rasters are accessed
+ * directly, other rasters pixel by pixel.
+ */
+final class ImageRotator {
+
+    // Pixels are moved in square tiles, so turning source columns into
+    // destination rows reads each source cache line a few times in a row,
+    // instead of once per destination row.
+    private static final int TILE_SIZE = 32;
+
+    private ImageRotator() {}
+
+    /**
+     * @param deg An angle in degrees.
+     * @return The number of clockwise quarter turns (0 to 3) equivalent to
+     * {@code deg}, or -1 if {@code deg} is not a multiple of 90.
+     */
+    static int getQuarterTurns(double deg) {
+        double turns = deg / 90;
+        if (turns != Math.rint(turns) || Double.isInfinite(turns)) {
+            return -1;
+        }
+        return (int) (((turns % 4) + 4) % 4);
+    }
+
+    /**
+     * Rotates an image clockwise by the given number of quarter turns.
+     * @param image The image to rotate.
+     * @param quarterTurns The number of quarter turns, 0 to 3.
+     * @param executorService The executor on which bands of the rotated
+     *                        image's rows are filled, or {@code null} to
+     *                        rotate on the calling thread.
+     * @param parallelism The number of bands. Ignored if {@code
+     *                    executorService} is {@code null}.
+     * @return The rotated image, which has the color model of {@code image}.
+     */
+    static BufferedImage rotate(BufferedImage image, int quarterTurns,
+                                ExecutorService executorService,
+                                int parallelism) {
+        ArgumentGuard.notNull(image, "image");
+        ArgumentGuard.greaterThanZero(parallelism, "parallelism");
+
+        boolean isSideways = (quarterTurns % 2) == 1;
+        int width = isSideways ? image.getHeight() : image.getWidth();
+        int height = isSideways ? image.getWidth() : image.getHeight();
+
+        Raster source = image.getRaster();
+        WritableRaster destination =
+                source.createCompatibleWritableRaster(width, height);
+
+        int bandsCount = Math.min(parallelism, height);
+        if (executorService == null || bandsCount <= 1) {
+            createBand(source, destination, quarterTurns, 0, height).call();
+        } else {
+            int bandHeight = (height / bandsCount)
+                    + ((height % bandsCount) == 0 ? 0 : 1);
+            List<Future<Void>> bands = new ArrayList<Future<Void>>();
+            try {
+                for (int firstRow = 0; firstRow < height;
+                        firstRow += bandHeight) {
+                    bands.add(executorService.submit(createBand(source,
+                            destination, quarterTurns, firstRow,
+                            Math.min(firstRow + bandHeight, height))));
+                }
+                for (Future<Void> band : bands) {
+                    waitFor(band);
+                }
+            } finally {
+                // Stop bands which are still running, if any.
+                for (Future<Void> band : bands) {
+                    band.cancel(false);
+                }
+            }
+        }
+
+        return new BufferedImage(image.getColorModel(), destination,
+                image.isAlphaPremultiplied(), null);
+    }
+
+    private static void waitFor(Future<Void> band) {
+        try {
+            band.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EyesException("Interrupted while rotating image!", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EyesException("Failed to rotate image!", cause);
+        }
+    }
+
+    /**
+     * @return A task which fills the rows {@code firstRow} (inclusive) to
+     * {@code lastRow} (exclusive) of {@code destination}.
+     */
+    private static Band createBand(Raster source, WritableRaster destination,
+                                   int quarterTurns, int firstRow,
+                                   int lastRow) {
+        SampleModel sourceModel = source.getSampleModel();
+        SampleModel destinationModel = destination.getSampleModel();
+        DataBuffer sourceBuffer = source.getDataBuffer();
+
+        if (sourceModel instanceof PixelInterleavedSampleModel
+                && sourceBuffer instanceof DataBufferByte
+                && Arrays.equals(
+                    ((PixelInterleavedSampleModel) sourceModel)
+                            .getBandOffsets(),
+                    ((PixelInterleavedSampleModel) destinationModel)
+                            .getBandOffsets())) {
+            return new ByteBand(source, destination, quarterTurns, firstRow,
+                    lastRow);
+        }
+        if (sourceModel instanceof SinglePixelPackedSampleModel
+                && sourceBuffer instanceof DataBufferInt) {
+            return new IntBand(source, destination, quarterTurns, firstRow,
+                    lastRow);
+        }
+        return new Band(source, destination, quarterTurns, firstRow,
+                lastRow);
+    }
+
+    /**
+     * Fills rows of the rotated raster, pixel by pixel.
+     */
+    private static class Band implements Callable<Void> {
+        protected final Raster source;
+        protected final WritableRaster destination;
+        protected final int quarterTurns;
+        protected final int firstRow;
+        protected final int lastRow;
+
+        Band(Raster source, WritableRaster destination, int quarterTurns,
+             int firstRow, int lastRow) {
+            this.source = source;
+            this.destination = destination;
+            this.quarterTurns = quarterTurns;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        public Void call() {
+            int width = destination.getWidth();
+            int lastX = source.getMinX() + source.getWidth() - 1;
+            int lastY = source.getMinY() + source.getHeight() - 1;
+            Object pixel = null;
+            for (int y = firstRow; y < lastRow; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    int sourceX;
+                    int sourceY;
+                    switch (quarterTurns) {
+                        case 1:
+                            sourceX = source.getMinX() + y;
+                            sourceY = lastY - x;
+                            break;
+                        case 2:
+                            sourceX = lastX - x;
+                            sourceY = lastY - y;
+                            break;
+                        case 3:
+                            sourceX = lastX - y;
+                            sourceY = source.getMinY() + x;
+                            break;
+                        default:
+                            sourceX = source.getMinX() + x;
+                            sourceY = source.getMinY() + y;
+                    }
+                    pixel = source.getDataElements(sourceX, sourceY, pixel);
+                    destination.setDataElements(x, y, pixel);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Fills rows of the rotated raster directly in the rasters' data arrays.
+     * <p>
+     * The source of destination pixel (x, y) is at {@code origin + y *
+     * rowStep + x * columnStep}, in elements of the source's data array.
+     */
+    private abstract static class IndexedBand extends Band {
+        protected final int pixelLength;
+        protected final int destinationStride;
+        protected final int origin;
+        protected final int rowStep;
+        protected final int columnStep;
+
+        IndexedBand(Raster source, WritableRaster destination,
+                    int quarterTurns, int firstRow, int lastRow,
+                    int pixelLength, int sourceStride,
+                    int destinationStride) {
+            super(source, destination, quarterTurns, firstRow, lastRow);
+            this.pixelLength = pixelLength;
+            this.destinationStride = destinationStride;
+
+            // The source may be a child raster, at a translation of its
+            // parent's data.
+            int sourceOffset = source.getDataBuffer().getOffset()
+                    - source.getSampleModelTranslateY() * sourceStride
+                    - source.getSampleModelTranslateX() * pixelLength;
+            int lastColumn = (source.getWidth() - 1) * pixelLength;
+            int lastRowStart = (source.getHeight() - 1) * sourceStride;
+            switch (quarterTurns) {
+                case 1:
+                    // Destination rows are source columns, bottom to top.
+                    origin = sourceOffset + lastRowStart;
+                    rowStep = pixelLength;
+                    columnStep = -sourceStride;
+                    break;
+                case 2:
+                    origin = sourceOffset + lastRowStart + lastColumn;
+                    rowStep = -sourceStride;
+                    columnStep = -pixelLength;
+                    break;
+                case 3:
+                    // Destination rows are source columns, right to left.
+                    origin = sourceOffset + lastColumn;
+                    rowStep = -pixelLength;
+                    columnStep = sourceStride;
+                    break;
+                default:
+                    origin = sourceOffset;
+                    rowStep = sourceStride;
+                    columnStep = pixelLength;
+            }
+        }
+    }
+
+    private static class ByteBand extends IndexedBand {
+        ByteBand(Raster source, WritableRaster destination, int quarterTurns,
+                 int firstRow, int lastRow) {
+            super(source, destination, quarterTurns, firstRow, lastRow,
+                    ((PixelInterleavedSampleModel) source.getSampleModel())
+                            .getPixelStride(),
+                    ((PixelInterleavedSampleModel) source.getSampleModel())
+                            .getScanlineStride(),
+                    ((PixelInterleavedSampleModel)
+                            destination.getSampleModel())
+                            .getScanlineStride());
+        }
+
+        @Override
+        public Void call() {
+            byte[] sourceData =
+                    ((DataBufferByte) source.getDataBuffer()).getData();
+            byte[] destinationData =
+                    ((DataBufferByte) destination.getDataBuffer()).getData();
+            int width = destination.getWidth();
+
+            if (columnStep == pixelLength) {
+                int rowLength = width * pixelLength;
+                for (int y = firstRow; y < lastRow; ++y) {
+                    System.arraycopy(sourceData, origin + y * rowStep,
+                            destinationData, y * destinationStride,
+                            rowLength);
+                }
+                return null;
+            }
+
+            for (int tileTop = firstRow; tileTop < lastRow;
+                    tileTop += TILE_SIZE) {
+                int tileBottom = Math.min(tileTop + TILE_SIZE, lastRow);
+                for (int tileLeft = 0; tileLeft < width;
+                        tileLeft += TILE_SIZE) {
+                    int tileWidth = Math.min(TILE_SIZE, width - tileLeft);
+                    for (int y = tileTop; y < tileBottom; ++y) {
+                        int sourceIndex = origin + y * rowStep
+                                + tileLeft * columnStep;
+                        int destinationIndex = y * destinationStride
+                                + tileLeft * pixelLength;
+                        copyRow(sourceData, sourceIndex, destinationData,
+                                destinationIndex, tileWidth);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void copyRow(byte[] sourceData, int sourceIndex,
+                             byte[] destinationData, int destinationIndex,
+                             int pixelsCount) {
+            int destinationEnd = destinationIndex + pixelsCount * pixelLength;
+            if (pixelLength == 3) {
+                for (; destinationIndex < destinationEnd;
+                        destinationIndex += 3, sourceIndex += columnStep) {
+                    destinationData[destinationIndex] =
+                            sourceData[sourceIndex];
+                    destinationData[destinationIndex + 1] =
+                            sourceData[sourceIndex + 1];
+                    destinationData[destinationIndex + 2] =
+                            sourceData[sourceIndex + 2];
+                }
+                return;
+            }
+
+            for (; destinationIndex < destinationEnd;
+                    destinationIndex += pixelLength,
+                    sourceIndex += columnStep) {
+                for (int i = 0; i < pixelLength; ++i) {
+                    destinationData[destinationIndex + i] =
+                            sourceData[sourceIndex + i];
+                }
+            }
+        }
+    }
+
+    private static class IntBand extends IndexedBand {
+        IntBand(Raster source, WritableRaster destination, int quarterTurns,
+                int firstRow, int lastRow) {
+            super(source, destination, quarterTurns, firstRow, lastRow, 1,
+                    ((SinglePixelPackedSampleModel) source.getSampleModel())
+                            .getScanlineStride(),
+                    ((SinglePixelPackedSampleModel)
+                            destination.getSampleModel())
+                            .getScanlineStride());
+        }
+
+        @Override
+        public Void call() {
+            int[] sourceData =
+                    ((DataBufferInt) source.getDataBuffer()).getData();
+            int[] destinationData =
+                    ((DataBufferInt) destination.getDataBuffer()).getData();
+            int width = destination.getWidth();
+
+            for (int tileTop = firstRow; tileTop < lastRow;
+                    tileTop += TILE_SIZE) {
+                int tileBottom = Math.min(tileTop + TILE_SIZE, lastRow);
+                for (int tileLeft = 0; tileLeft < width;
+                        tileLeft += TILE_SIZE) {
+                    int tileRight = Math.min(tileLeft + TILE_SIZE, width);
+                    for (int y = tileTop; y < tileBottom; ++y) {
+                        int sourceIndex = origin + y * rowStep
+                                + tileLeft * columnStep;
+                        int destinationRow = y * destinationStride;
+                        for (int x = tileLeft; x < tileRight; ++x) {
+                            destinationData[destinationRow + x] =
+                                    sourceData[sourceIndex];
+                            sourceIndex += columnStep;
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
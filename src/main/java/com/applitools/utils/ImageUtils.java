@@ -6,45 +6,110 @@ package com.applitools.utils;
 import com.applitools.eyes.EyesException;
 import com.applitools.eyes.Region;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
 
 public class ImageUtils {
+
+    // Encoders are reused (per thread) for their deflaters and row buffers.
+    private static final ThreadLocal<PngEncoder> PNG_ENCODERS =
+            new ThreadLocal<PngEncoder>() {
+                protected PngEncoder initialValue() {
+                    return new PngEncoder();
+                }
+            };
+
+    // PNG readers are reused (per thread), since screenshots are decoded
+    // often and creating a reader is costly.
+    private static final ThreadLocal<ImageReader> PNG_READERS =
+            new ThreadLocal<ImageReader>() {
+                protected ImageReader initialValue() {
+                    Iterator<ImageReader> readers =
+                            ImageIO.getImageReadersByFormatName("png");
+                    if (!readers.hasNext()) {
+                        throw new EyesException(
+                                "No PNG image reader available");
+                    }
+                    return readers.next();
+                }
+            };
+
+    private static final byte[] PNG_SIGNATURE =
+            {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
     /**
-     * Encodes a given image as PNG.
+     * Encodes a given image as PNG, using zlib's default deflate level.
      * @param image The image to encode.
      * @return The PNG bytes representation of the image.
      */
     public static byte[] encodeAsPng(BufferedImage image) {
+        return encodeAsPng(image, CompressionProfile.BALANCED);
+    }
+
+    /**
+     * Encodes a given image as PNG, using the deflate level and strategy of
+     * the given profile.
+     * @param image The image to encode.
+     * @param profile The compression profile to use.
+     * @return The PNG bytes representation of the image.
+     */
+    public static byte[] encodeAsPng(BufferedImage image,
+                                     CompressionProfile profile) {
 
         ArgumentGuard.notNull(image, "image");
+        ArgumentGuard.notNull(profile, "profile");
 
-        byte[] encodedImage; // PNG representation.
-        ByteArrayOutputStream pngBytesStream = new ByteArrayOutputStream();
+        return PNG_ENCODERS.get().encode(image, profile);
+    }
+
+    /**
+     * Encodes a given image as PNG, using the deflate level and strategy of
+     * the given profile. When an executor service is given, bands of the
+     * image's rows are encoded concurrently.
+     * @param image The image to encode.
+     * @param profile The compression profile to use.
+     * @param executorService The executor on which the bands are encoded,
+     *                        or {@code null} to encode on the calling
+     *                        thread.
+     * @param parallelism The number of bands the image is split into.
+     *                    Ignored if {@code executorService} is {@code
+     *                    null}.
+     * @return The PNG bytes representation of the image.
+     */
+    public static byte[] encodeAsPng(BufferedImage image,
+                                     CompressionProfile profile,
+                                     ExecutorService executorService,
+                                     int parallelism) {
+
+        ArgumentGuard.notNull(image, "image");
+        ArgumentGuard.notNull(profile, "profile");
 
+        ByteArrayOutputStream pngBytesStream = new ByteArrayOutputStream();
         try {
-            // Get the clipped image in PNG encoding.
-            ImageIO.write(image, "png", pngBytesStream);
-            pngBytesStream.flush();
-            encodedImage = pngBytesStream.toByteArray();
+            PNG_ENCODERS.get().encode(image, profile, executorService,
+                    parallelism, pngBytesStream);
         } catch (IOException e) {
             throw new EyesException("Failed to encode image", e);
-        } finally {
-            try{
-                pngBytesStream.close();
-            } catch (IOException e) {
-                //noinspection ThrowFromFinallyBlock
-                throw new EyesException("Failed to close png byte stream", e);
-            }
         }
-        return encodedImage;
+        return pngBytesStream.toByteArray();
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -78,12 +143,32 @@ public class ImageUtils {
      */
     public static BufferedImage imageFromBase64(String image64) throws
             EyesException {
+        return imageFromBase64(image64, null);
+    }
+
+    /**
+     * Creates a {@code BufferedImage} instance from a base64 encoding of an
+     * image's bytes, into an image taken from a pool.
+     * @param image64 The base64 encoding of an image's bytes.
+     * @param pool The pool from which the image is taken, or {@code null}.
+     * @return A BufferedImage instance representing the image.
+     * @throws com.applitools.eyes.EyesException If there was a problem
+     * creating the {@code BufferedImage} instance.
+     */
+    public static BufferedImage imageFromBase64(String image64,
+                                                ImagePool pool)
+            throws EyesException {
         ArgumentGuard.notNullOrEmpty(image64, "image64");
 
-        // Get the image bytes
-        byte[] imageBytes =
-                Base64.decodeBase64(image64.getBytes(Charset.forName("UTF-8")));
-        return imageFromBytes(imageBytes);
+        // The image bytes are decoded as they are read.
+        InputStream imageStream = new Base64InputStream(
+                new ByteArrayInputStream(
+                        image64.getBytes(Charset.forName("US-ASCII"))));
+        try {
+            return readImage(imageStream, pool);
+        } catch (IOException e) {
+            throw new EyesException("Failed to create buffered image!", e);
+        }
     }
 
     /**
@@ -107,16 +192,217 @@ public class ImageUtils {
      */
     public static BufferedImage imageFromBytes(byte[] imageBytes) throws
             EyesException {
-        BufferedImage image;
+        return imageFromBytes(imageBytes, null);
+    }
+
+    /**
+     * Creates a BufferedImage instance from raw image bytes, into an image
+     * taken from a pool.
+     * @param imageBytes The raw bytes of the image.
+     * @param pool The pool from which the image is taken, or {@code null}.
+     * @return A BufferedImage instance representing the image.
+     * @throws com.applitools.eyes.EyesException If there was a problem
+     * creating the {@code BufferedImage} instance.
+     */
+    public static BufferedImage imageFromBytes(byte[] imageBytes,
+                                               ImagePool pool)
+            throws EyesException {
         try {
-            ByteArrayInputStream screenshotStream =
-                    new ByteArrayInputStream(imageBytes);
-            image = ImageIO.read(screenshotStream);
-            screenshotStream.close();
+            return readImage(new ByteArrayInputStream(imageBytes), pool);
         } catch (IOException e) {
             throw new EyesException("Failed to create buffered image!", e);
         }
-        return image;
+    }
+
+    /**
+     * Decodes an image, in memory. PNG images are decoded by a reader which
+     * is reused by the calling thread. Unlike {@link
+     * ImageIO#read(InputStream)}, the stream is never cached in a temporary
+     * file, whatever {@link ImageIO#getUseCache()} is.
+     * @param stream The stream of the image's bytes. Not closed by this
+     *               method.
+     * @param pool The pool from which the decoded image is taken, or {@code
+     *             null}. The image is only taken from the pool if the reader
+     *             can decode into one of the canonical layouts (see {@link
+     *             #normalize(BufferedImage)}).
+     * @return The decoded image, as {@link ImageIO#read(InputStream)} would
+     * return it, or {@code null} if the image format is not supported.
+     * @throws IOException If the image could not be decoded.
+     */
+    private static BufferedImage readImage(InputStream stream,
+                                           ImagePool pool)
+            throws IOException {
+        ImageInputStream imageStream = new MemoryCacheImageInputStream(
+                stream);
+        try {
+            ImageReader reader;
+            boolean isShared = isPng(imageStream);
+            if (isShared) {
+                reader = PNG_READERS.get();
+            } else {
+                Iterator<ImageReader> readers =
+                        ImageIO.getImageReaders(imageStream);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                reader = readers.next();
+            }
+
+            try {
+                reader.setInput(imageStream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (pool != null) {
+                    // Decodes directly into a pooled image, if the reader
+                    // can decode into one of the canonical layouts.
+                    Iterator<ImageTypeSpecifier> types =
+                            reader.getImageTypes(0);
+                    while (types.hasNext()) {
+                        int type = types.next().getBufferedImageType();
+                        if (type == BufferedImage.TYPE_3BYTE_BGR
+                                || type == BufferedImage.TYPE_4BYTE_ABGR) {
+                            param.setDestination(pool.acquire(
+                                    reader.getWidth(0), reader.getHeight(0),
+                                    type));
+                            break;
+                        }
+                    }
+                }
+
+                return reader.read(0, param);
+            } finally {
+                if (isShared) {
+                    // Releases the stream, keeping the reader.
+                    reader.setInput(null);
+                } else {
+                    reader.dispose();
+                }
+            }
+        } finally {
+            imageStream.close();
+        }
+    }
+
+    /**
+     * @return Whether the stream starts with the PNG signature. The stream's
+     * position is unchanged.
+     */
+    private static boolean isPng(ImageInputStream imageStream)
+            throws IOException {
+        byte[] signature = new byte[PNG_SIGNATURE.length];
+        imageStream.mark();
+        try {
+            imageStream.readFully(signature);
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            imageStream.reset();
+        }
+        return Arrays.equals(signature, PNG_SIGNATURE);
+    }
+
+    /**
+     * Converts an image to the canonical pixel layout of screenshots: {@code
+     * TYPE_3BYTE_BGR}, or {@code TYPE_4BYTE_ABGR} if some of its pixels are
+     * not fully opaque. The delta compressor and the PNG encoder read these
+     * layouts directly, and an alpha channel which is fully opaque is
+     * dropped so it is neither compared nor encoded.
+     *
+     * @param image The image to normalize.
+     * @return The normalized image. The image itself if it is already in
+     * the canonical layout.
+     */
+    public static BufferedImage normalize(BufferedImage image) {
+        return normalize(image, null);
+    }
+
+    /**
+     * Converts an image to the canonical pixel layout of screenshots (see
+     * {@link #normalize(BufferedImage)}), into an image taken from a pool.
+     *
+     * @param image The image to normalize.
+     * @param pool The pool from which the normalized image is taken, or
+     *             {@code null}.
+     * @return The normalized image. The image itself if it is already in
+     * the canonical layout.
+     */
+    public static BufferedImage normalize(BufferedImage image,
+                                          ImagePool pool) {
+        ArgumentGuard.notNull(image, "image");
+
+        int type = image.getType();
+        boolean isOpaque = isOpaque(image);
+        if ((type == BufferedImage.TYPE_3BYTE_BGR)
+                || (type == BufferedImage.TYPE_4BYTE_ABGR && !isOpaque)) {
+            return image;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage normalized = createImage(pool, width, height,
+                isOpaque ? BufferedImage.TYPE_3BYTE_BGR :
+                        BufferedImage.TYPE_4BYTE_ABGR);
+        byte[] normalizedData = ((DataBufferByte)
+                normalized.getRaster().getDataBuffer()).getData();
+
+        if (type == BufferedImage.TYPE_4BYTE_ABGR) {
+            // Only the alpha byte of each pixel is dropped. Pixels are read
+            // in band order (RGBA) and written in memory order (BGR).
+            Raster raster = image.getRaster();
+            byte[] row = new byte[width * 4];
+            int normalizedIndex = 0;
+            for (int y = 0; y < height; ++y) {
+                raster.getDataElements(0, y, width, 1, row);
+                for (int i = 0; i < row.length; i += 4) {
+                    normalizedData[normalizedIndex++] = row[i + 2];
+                    normalizedData[normalizedIndex++] = row[i + 1];
+                    normalizedData[normalizedIndex++] = row[i];
+                }
+            }
+            return normalized;
+        }
+
+        // Copied as sRGB, so colors are exactly those getRGB returns for the
+        // image (drawing would convert gray images differently).
+        int[] row = new int[width];
+        int normalizedIndex = 0;
+        for (int y = 0; y < height; ++y) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int argb : row) {
+                if (!isOpaque) {
+                    normalizedData[normalizedIndex++] = (byte) (argb >>> 24);
+                }
+                normalizedData[normalizedIndex++] = (byte) argb;
+                normalizedData[normalizedIndex++] = (byte) (argb >>> 8);
+                normalizedData[normalizedIndex++] = (byte) (argb >>> 16);
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * @param image The image to check.
+     * @return Whether all of the image's pixels are fully opaque.
+     */
+    private static boolean isOpaque(BufferedImage image) {
+        WritableRaster alphaRaster = image.getAlphaRaster();
+        if (alphaRaster == null) {
+            return true;
+        }
+
+        ColorModel colorModel = image.getColorModel();
+        int opaque = (1 << colorModel.getComponentSize(
+                colorModel.getNumComponents() - 1)) - 1;
+        int width = alphaRaster.getWidth();
+        int[] alphas = new int[width];
+        for (int y = 0; y < alphaRaster.getHeight(); ++y) {
+            alphaRaster.getSamples(0, y, width, 1, 0, alphas);
+            for (int alpha : alphas) {
+                if (alpha != opaque) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /**
@@ -127,17 +413,125 @@ public class ImageUtils {
      */
     public static BufferedImage getImagePart(BufferedImage image,
                                              Region region) {
+        return getImagePart(image, region, null);
+    }
+
+    /**
+     * Get a copy of the part of the image given by region, into an image
+     * taken from a pool.
+     * @param image The image from which to get the part.
+     * @param region The region which should be copied from the image.
+     * @param pool The pool from which the part's image is taken, or {@code
+     *             null}. Ignored for images of a custom or an indexed type,
+     *             since pooled images would not share their color model.
+     * @return The part of the image.
+     */
+    public static BufferedImage getImagePart(BufferedImage image,
+                                             Region region, ImagePool pool) {
         ArgumentGuard.notNull(image, "image");
 
-        // Get the clipped region as a BufferedImage.
-        BufferedImage imagePart = image.getSubimage(
+        // A sub image (see BufferedImage#getSubimage) shares the pixels of
+        // the image and keeps its layout, so we copy the region's pixels
+        // into a raster of its own.
+        WritableRaster regionRaster = image.getRaster().createWritableChild(
                 region.getLeft(), region.getTop(), region.getWidth(),
-                region.getHeight());
-        // IMPORTANT We copy the image this way because just using getSubImage
-        // created a later problem (maybe an actual Java bug): the pixels
-        // weren't what they were supposed to be.
-        byte[] imagePartBytes = encodeAsPng(imagePart);
-        return imageFromBytes(imagePartBytes);
+                region.getHeight(), 0, 0, null);
+
+        if (pool != null && ImagePool.isPoolableType(image)) {
+            BufferedImage imagePart = pool.acquire(region.getWidth(),
+                    region.getHeight(), image.getType());
+            copyPixels(regionRaster, imagePart.getRaster());
+            return imagePart;
+        }
+
+        WritableRaster imagePartRaster =
+                regionRaster.createCompatibleWritableRaster();
+        copyPixels(regionRaster, imagePartRaster);
+
+        return new BufferedImage(image.getColorModel(), imagePartRaster,
+                image.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * @param pool The pool from which to take the image, or {@code null}.
+     * @return A new or pooled image of the given size and type.
+     */
+    private static BufferedImage createImage(ImagePool pool, int width,
+                                             int height, int type) {
+        if (pool == null) {
+            return new BufferedImage(width, height, type);
+        }
+        return pool.acquire(width, height, type);
+    }
+
+    /**
+     * Copies the pixels of a raster into a compatible raster of the same
+     * size. Whole rows are copied if both rasters are byte interleaved or
+     * int packed, and pixel by pixel otherwise.
+     * @param source The raster to copy.
+     * @param destination The raster to copy to. Must have been created by
+     *                    {@link Raster#createCompatibleWritableRaster()}
+     *                    of {@code source}, or belong to an image of the
+     *                    same (predefined) type as the source's image.
+     */
+    private static void copyPixels(Raster source,
+                                   WritableRaster destination) {
+        SampleModel sourceModel = source.getSampleModel();
+        SampleModel destinationModel = destination.getSampleModel();
+        DataBuffer sourceBuffer = source.getDataBuffer();
+        DataBuffer destinationBuffer = destination.getDataBuffer();
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        int rowLength;
+        int sourceStride;
+        int destinationStride;
+        if (sourceModel instanceof PixelInterleavedSampleModel
+                && sourceBuffer instanceof DataBufferByte
+                && Arrays.equals(
+                    ((PixelInterleavedSampleModel) sourceModel)
+                            .getBandOffsets(),
+                    ((PixelInterleavedSampleModel) destinationModel)
+                            .getBandOffsets())) {
+            int pixelStride = ((PixelInterleavedSampleModel) sourceModel)
+                    .getPixelStride();
+            rowLength = width * pixelStride;
+            sourceStride = ((PixelInterleavedSampleModel) sourceModel)
+                    .getScanlineStride();
+            destinationStride = ((PixelInterleavedSampleModel)
+                    destinationModel).getScanlineStride();
+        } else if (sourceModel instanceof SinglePixelPackedSampleModel
+                && sourceBuffer instanceof DataBufferInt) {
+            rowLength = width;
+            sourceStride = ((SinglePixelPackedSampleModel) sourceModel)
+                    .getScanlineStride();
+            destinationStride = ((SinglePixelPackedSampleModel)
+                    destinationModel).getScanlineStride();
+        } else {
+            destination.setDataElements(0, 0, source);
+            return;
+        }
+
+        // The source may be a child raster, at a translation of its
+        // parent's data.
+        int sourceOffset = sourceBuffer.getOffset()
+                - source.getSampleModelTranslateY() * sourceStride
+                - source.getSampleModelTranslateX() * (rowLength / width);
+        Object sourceData = (sourceBuffer instanceof DataBufferByte) ?
+                ((DataBufferByte) sourceBuffer).getData() :
+                ((DataBufferInt) sourceBuffer).getData();
+        Object destinationData =
+                (destinationBuffer instanceof DataBufferByte) ?
+                        ((DataBufferByte) destinationBuffer).getData() :
+                        ((DataBufferInt) destinationBuffer).getData();
+
+        int destinationOffset = 0;
+        for (int y = 0; y < height; ++y) {
+            System.arraycopy(sourceData, sourceOffset, destinationData,
+                    destinationOffset, rowLength);
+            sourceOffset += sourceStride;
+            destinationOffset += destinationStride;
+        }
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -149,6 +543,35 @@ public class ImageUtils {
      * @return A rotated image.
      */
     public static BufferedImage rotateImage(BufferedImage image, double deg) {
+        return rotateImage(image, deg, null, 1);
+    }
+
+    /**
+     * Rotates an image by the given degrees (clockwise). Rotations by
+     * multiples of 90 degrees move the pixels as they are, without
+     * interpolation, and can be done concurrently in bands of rows.
+     *
+     * @param image The image to rotate.
+     * @param deg The degrees by which to rotate the image.
+     * @param executorService The executor on which right angle rotations are
+     *                        done, or {@code null} to rotate on the calling
+     *                        thread.
+     * @param parallelism The number of bands the rotated image is split
+     *                    into. Ignored if {@code executorService} is {@code
+     *                    null}.
+     * @return A rotated image.
+     */
+    public static BufferedImage rotateImage(BufferedImage image, double deg,
+                                            ExecutorService executorService,
+                                            int parallelism) {
+        ArgumentGuard.notNull(image, "image");
+
+        int quarterTurns = ImageRotator.getQuarterTurns(deg);
+        if (quarterTurns != -1) {
+            return ImageRotator.rotate(image, quarterTurns, executorService,
+                    parallelism);
+        }
+
         double radians = Math.toRadians(deg);
 
         // We need this to calculate the width/height of the rotated image.
@@ -0,0 +1,556 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Provides block level access to the pixels of a target image and the
+ * source image it is compared to, directly on the images' rasters.
+ *
+ * Channels are numbered in the order of the (A)BGR byte interleaved layout,
+ * i.e., channel 0 is blue, channel 1 is green and channel 2 is red. Alpha is
+ * ignored.
+ */
+abstract class PixelBlocks {
+
+    /**
+     * The number of color channels compared and copied.
+     */
+    public static final int CHANNELS_COUNT = 3;
+
+    /**
+     * A mask in which all the channels are set.
+     */
+    public static final int ALL_CHANNELS = (1 << CHANNELS_COUNT) - 1;
+
+    protected final int width;
+    protected final int height;
+    protected final int blockSize;
+    protected final int blockColumnsCount;
+    protected final int blockRowsCount;
+
+    /**
+     * @param width The width of the images in pixels.
+     * @param height The height of the images in pixels.
+     * @param blockSize How many pixels per block.
+     */
+    protected PixelBlocks(int width, int height, int blockSize) {
+        this.width = width;
+        this.height = height;
+        this.blockSize = blockSize;
+
+        blockColumnsCount = (width / blockSize)
+                + ((width % blockSize) == 0 ? 0 : 1);
+        blockRowsCount = (height / blockSize)
+                + ((height % blockSize) == 0 ? 0 : 1);
+    }
+
+    /**
+     * Creates block level access to the pixels of the given images. Byte
+     * interleaved and int packed rasters are accessed directly. Images of
+     * any other type are converted to a byte interleaved layout first.
+     * @param target The image we want to compress.
+     * @param source The image to which {@code target} is compared. Must be
+     *               of the same size as {@code target}.
+     * @param blockSize How many pixels per block.
+     * @return A {@code PixelBlocks} instance for the given images.
+     */
+    public static PixelBlocks create(BufferedImage target,
+            BufferedImage source, int blockSize) {
+        ArgumentGuard.notNull(target, "target");
+        ArgumentGuard.notNull(source, "source");
+        ArgumentGuard.greaterThanZero(blockSize, "blockSize");
+
+        if (IntPixelBlocks.isSupported(target)) {
+            if (!IntPixelBlocks.isSupported(source)
+                    || !IntPixelBlocks.hasSameLayout(target, source)) {
+                source = convertToLayoutOf(source, target);
+            }
+            return new IntPixelBlocks(target, source, blockSize);
+        }
+
+        if (!BytePixelBlocks.isSupported(target)) {
+            target = convert(target, (target.getAlphaRaster() != null) ?
+                    BufferedImage.TYPE_4BYTE_ABGR :
+                    BufferedImage.TYPE_3BYTE_BGR);
+        }
+        if (source.getType() != target.getType()
+                || !BytePixelBlocks.isSupported(source)) {
+            source = convert(source, target.getType());
+        }
+
+        return new BytePixelBlocks(target, ByteBuffer.wrap(((DataBufferByte)
+                source.getRaster().getDataBuffer()).getData()), blockSize);
+    }
+
+    /**
+     * Creates block level access to the pixels of a target image and of a
+     * source image kept in a pixel store. The store is read directly if the
+     * target is byte interleaved in the same layout.
+     * @param target The image we want to compress.
+     * @param source The store of the image to which {@code target} is
+     *               compared. Must be of the same size as {@code target}.
+     * @param blockSize How many pixels per block.
+     * @return A {@code PixelBlocks} instance for the given images.
+     */
+    public static PixelBlocks create(BufferedImage target, PixelStore source,
+            int blockSize) {
+        ArgumentGuard.notNull(target, "target");
+        ArgumentGuard.notNull(source, "source");
+        ArgumentGuard.greaterThanZero(blockSize, "blockSize");
+
+        if (BytePixelBlocks.isSupported(target)
+                && target.getType() == source.getType()) {
+            // Read once, and shared by all the bands of the comparison.
+            return new BytePixelBlocks(target, source.getPixels(),
+                    blockSize);
+        }
+        return create(target, source.toImage(), blockSize);
+    }
+
+    /**
+     * Draws an image on a new image of the given type.
+     * @param image The image to convert.
+     * @param type The type of the new image.
+     * @return The converted image.
+     */
+    private static BufferedImage convert(BufferedImage image, int type) {
+        return draw(image, new BufferedImage(image.getWidth(),
+                image.getHeight(), type));
+    }
+
+    /**
+     * Draws an image on a new image with the same pixel layout as a given
+     * image.
+     * @param image The image to convert.
+     * @param layout An image with the required pixel layout.
+     * @return The converted image.
+     */
+    private static BufferedImage convertToLayoutOf(BufferedImage image,
+            BufferedImage layout) {
+        if (layout.getType() != BufferedImage.TYPE_CUSTOM) {
+            return convert(image, layout.getType());
+        }
+
+        ColorModel colorModel = layout.getColorModel();
+        return draw(image, new BufferedImage(colorModel,
+                colorModel.createCompatibleWritableRaster(image.getWidth(),
+                        image.getHeight()),
+                colorModel.isAlphaPremultiplied(), null));
+    }
+
+    /**
+     * @param image The image to draw.
+     * @param destination The image to draw on.
+     * @return {@code destination}.
+     */
+    private static BufferedImage draw(BufferedImage image,
+            BufferedImage destination) {
+        Graphics2D g = destination.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return destination;
+    }
+
+    /**
+     * @return The number of block columns.
+     */
+    public int getBlockColumnsCount() {
+        return blockColumnsCount;
+    }
+
+    /**
+     * @return The number of block rows.
+     */
+    public int getBlockRowsCount() {
+        return blockRowsCount;
+    }
+
+    /**
+     * @param blockColumn The block column index.
+     * @return The width of the image data contained in the blocks of the
+     * column.
+     */
+    protected int getActualBlockWidth(int blockColumn) {
+        return Math.min(width - (blockColumn * blockSize), blockSize);
+    }
+
+    /**
+     * @param blockRow The block row index.
+     * @return The height of the image data contained in the blocks of the
+     * row.
+     */
+    protected int getActualBlockHeight(int blockRow) {
+        return Math.min(height - (blockRow * blockSize), blockSize);
+    }
+
+    /**
+     * Compares a block of pixels between the source and target images.
+     * @param blockColumn The column index of the block to compare.
+     * @param blockRow The row index of the block to compare.
+     * @return A mask of the channels in which the target block differs from
+     * the source block (bit {@code c} is set if channel {@code c} differs).
+     */
+    public abstract int compareBlock(int blockColumn, int blockRow);
+
+    /**
+     * Copies the channel bytes of a target block into a buffer.
+     * @param channel The channel to copy.
+     * @param blockColumn The column index of the block to copy.
+     * @param blockRow The row index of the block to copy.
+     * @param buffer The buffer to which the channel bytes are copied.
+     * @param bufferOffset The offset in {@code buffer} to start copying to.
+     * @return The offset in {@code buffer} following the copied bytes.
+     */
+    public abstract int copyBlockChannelData(int channel, int blockColumn,
+            int blockRow, byte[] buffer, int bufferOffset);
+
+    /**
+     * Block access to byte interleaved (A)BGR rasters. Block rows are first
+     * compared as a whole, and channels are only compared separately from
+     * the first row which differs. The source pixels are read from an array
+     * if they are on the heap, or through a buffer otherwise, so they can
+     * also be kept off the heap (see {@link PixelStore}).
+     * <p>
+     * Rows of at least {@link #MIN_WORDS_ROW_LENGTH} bytes are compared 8
+     * bytes at a time on Java 9 and later, and a byte at a time otherwise:
+     * on Java 7 and 8, reading longs from a heap buffer assembles them byte
+     * by byte, which is several times slower than comparing the bytes
+     * themselves.
+     */
+    private static class BytePixelBlocks extends PixelBlocks {
+        // Comparing equal rows (ns per byte, bytes / words):
+        //   Java 8:      30 bytes 0.70 / 2.06,  192 bytes 0.52 / 1.41
+        //   Java 11-21:  30 bytes 0.40-1.04 / 0.55-0.85,
+        //                48 bytes 0.59-0.78 / 0.33-0.43,
+        //                192 bytes 0.41-0.60 / 0.13-0.20
+        private static final int MIN_WORDS_ROW_LENGTH = 48;
+        private static final boolean CAN_COMPARE_WORDS =
+                !System.getProperty("java.specification.version", "1.")
+                        .startsWith("1.");
+
+        private final byte[] targetPixels;
+        // The source pixels, or null if they are not in an accessible array.
+        private final byte[] sourcePixels;
+        // Only absolute reads are used, so the buffers can be shared between
+        // threads.
+        private final ByteBuffer sourceBuffer;
+        // Views of the pixels for reading 8 bytes at a time, or null if rows
+        // are compared a byte at a time.
+        private final ByteBuffer sourceWords;
+        private final ByteBuffer targetWords;
+        // Bytes per pixel. Since pixel might include alpha.
+        private final int pixelLength;
+        private final int stride;
+        // The offset of the first color channel in a pixel.
+        private final int firstChannelOffset;
+
+        /**
+         * @param image The image to check.
+         * @return Whether the raster of the image can be accessed directly.
+         */
+        public static boolean isSupported(BufferedImage image) {
+            int type = image.getType();
+            return (type == BufferedImage.TYPE_3BYTE_BGR
+                        || type == BufferedImage.TYPE_4BYTE_ABGR
+                        || type == BufferedImage.TYPE_4BYTE_ABGR_PRE)
+                    && isCompact(image.getRaster());
+        }
+
+        /**
+         * @param target The image we want to compress.
+         * @param sourcePixels The pixels of the source image, in the layout
+         *                     of {@code target}, starting at position 0.
+         * @param blockSize How many pixels per block.
+         */
+        public BytePixelBlocks(BufferedImage target, ByteBuffer sourcePixels,
+                int blockSize) {
+            super(target.getWidth(), target.getHeight(), blockSize);
+
+            targetPixels = ((DataBufferByte) target.getRaster()
+                    .getDataBuffer()).getData();
+            if (sourcePixels.hasArray() && sourcePixels.arrayOffset() == 0) {
+                this.sourcePixels = sourcePixels.array();
+                sourceBuffer = null;
+            } else {
+                this.sourcePixels = null;
+                sourceBuffer = sourcePixels;
+            }
+            pixelLength = (target.getAlphaRaster() != null) ? 4 : 3;
+            stride = width * pixelLength;
+            if (CAN_COMPARE_WORDS
+                    && blockSize * pixelLength >= MIN_WORDS_ROW_LENGTH) {
+                // Byte order doesn't matter for equality, so the native one
+                // is used to avoid swapping.
+                sourceWords = sourcePixels.duplicate()
+                        .order(ByteOrder.nativeOrder());
+                targetWords = ByteBuffer.wrap(targetPixels)
+                        .order(ByteOrder.nativeOrder());
+            } else {
+                sourceWords = null;
+                targetWords = null;
+            }
+            // The image is (A)BGR, so all that's left is to skip the Alpha
+            // channel if there is one.
+            firstChannelOffset = (pixelLength == 4) ? 1 : 0;
+        }
+
+        /**
+         * @return The offset of the block's first (top left) pixel.
+         */
+        private int getBlockOffset(int blockColumn, int blockRow) {
+            return (blockSize * blockRow * stride)
+                    + (blockSize * blockColumn * pixelLength);
+        }
+
+        /**
+         * @return Whether the given ranges of the source and target pixels
+         * are equal.
+         */
+        private boolean isRowEqual(int offset, int length) {
+            int end = offset + length;
+            int i = offset;
+            if (sourceWords != null) {
+                for (int wordsEnd = end - 7; i < wordsEnd; i += 8) {
+                    if (sourceWords.getLong(i) != targetWords.getLong(i)) {
+                        return false;
+                    }
+                }
+            }
+            if (sourcePixels != null) {
+                for (; i < end; ++i) {
+                    if (sourcePixels[i] != targetPixels[i]) {
+                        return false;
+                    }
+                }
+            } else {
+                for (; i < end; ++i) {
+                    if (sourceBuffer.get(i) != targetPixels[i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return The source byte at the given offset.
+         */
+        private byte getSourceByte(int offset) {
+            return (sourcePixels != null) ? sourcePixels[offset]
+                    : sourceBuffer.get(offset);
+        }
+
+        public int compareBlock(int blockColumn, int blockRow) {
+            int actualBlockWidth = getActualBlockWidth(blockColumn);
+            int actualBlockHeight = getActualBlockHeight(blockRow);
+            int offset = getBlockOffset(blockColumn, blockRow);
+            int rowLength = actualBlockWidth * pixelLength;
+
+            // Skipping the rows which are equal as a whole (alpha included).
+            int h = 0;
+            while (h < actualBlockHeight && isRowEqual(offset, rowLength)) {
+                offset += stride;
+                ++h;
+            }
+            if (h == actualBlockHeight) {
+                return 0;
+            }
+
+            offset += firstChannelOffset;
+            int diff0 = 0, diff1 = 0, diff2 = 0;
+            for (; h < actualBlockHeight; ++h) {
+                int rowEnd = offset + rowLength;
+                for (int i = offset; i < rowEnd; i += pixelLength) {
+                    diff0 |= getSourceByte(i) ^ targetPixels[i];
+                    diff1 |= getSourceByte(i + 1) ^ targetPixels[i + 1];
+                    diff2 |= getSourceByte(i + 2) ^ targetPixels[i + 2];
+                }
+
+                // No need to go on if all channels already differ.
+                if (diff0 != 0 && diff1 != 0 && diff2 != 0) {
+                    return ALL_CHANNELS;
+                }
+                offset += stride;
+            }
+
+            return (diff0 != 0 ? 1 : 0) | (diff1 != 0 ? 2 : 0)
+                    | (diff2 != 0 ? 4 : 0);
+        }
+
+        public int copyBlockChannelData(int channel, int blockColumn,
+                int blockRow, byte[] buffer, int bufferOffset) {
+            int actualBlockWidth = getActualBlockWidth(blockColumn);
+            int actualBlockHeight = getActualBlockHeight(blockRow);
+            int offset = getBlockOffset(blockColumn, blockRow)
+                    + firstChannelOffset + channel;
+
+            for (int h = 0; h < actualBlockHeight; ++h) {
+                int i = offset;
+                for (int w = 0; w < actualBlockWidth; ++w) {
+                    buffer[bufferOffset++] = targetPixels[i];
+                    i += pixelLength;
+                }
+                offset += stride;
+            }
+            return bufferOffset;
+        }
+    }
+
+    /**
+     * Block access to int packed rasters (e.g., {@code TYPE_INT_RGB}).
+     * Whole pixels are compared at once, and channels are only extracted
+     * when copying.
+     */
+    private static class IntPixelBlocks extends PixelBlocks {
+        private final int[] sourcePixels;
+        private final int[] targetPixels;
+        // Bit shift of each channel (blue, green, red) in a pixel.
+        private final int[] channelShifts;
+        // The bits of a pixel which hold color (i.e., not alpha).
+        private final int colorMask;
+
+        /**
+         * @param image The image to check.
+         * @return Whether the raster of the image can be accessed directly.
+         */
+        public static boolean isSupported(BufferedImage image) {
+            if (!(image.getColorModel() instanceof DirectColorModel)
+                    || !(image.getRaster().getDataBuffer()
+                            instanceof DataBufferInt)
+                    || !isCompact(image.getRaster())) {
+                return false;
+            }
+
+            DirectColorModel colorModel =
+                    (DirectColorModel) image.getColorModel();
+            return isByteMask(colorModel.getBlueMask())
+                    && isByteMask(colorModel.getGreenMask())
+                    && isByteMask(colorModel.getRedMask());
+        }
+
+        /**
+         * @param first An image of a supported type.
+         * @param second An image of a supported type.
+         * @return Whether the pixels of both images are packed the same way.
+         */
+        public static boolean hasSameLayout(BufferedImage first,
+                BufferedImage second) {
+            DirectColorModel firstModel =
+                    (DirectColorModel) first.getColorModel();
+            DirectColorModel secondModel =
+                    (DirectColorModel) second.getColorModel();
+            return firstModel.getBlueMask() == secondModel.getBlueMask()
+                    && firstModel.getGreenMask() == secondModel.getGreenMask()
+                    && firstModel.getRedMask() == secondModel.getRedMask();
+        }
+
+        /**
+         * @return Whether the mask consists of 8 consecutive bits, aligned to
+         * a byte.
+         */
+        private static boolean isByteMask(int mask) {
+            int shift = Integer.numberOfTrailingZeros(mask);
+            return (shift % 8) == 0 && (mask >>> shift) == 0xFF;
+        }
+
+        public IntPixelBlocks(BufferedImage target, BufferedImage source,
+                int blockSize) {
+            super(target.getWidth(), target.getHeight(), blockSize);
+
+            targetPixels = ((DataBufferInt) target.getRaster()
+                    .getDataBuffer()).getData();
+            sourcePixels = ((DataBufferInt) source.getRaster()
+                    .getDataBuffer()).getData();
+
+            DirectColorModel colorModel =
+                    (DirectColorModel) target.getColorModel();
+            channelShifts = new int[] {
+                    Integer.numberOfTrailingZeros(colorModel.getBlueMask()),
+                    Integer.numberOfTrailingZeros(colorModel.getGreenMask()),
+                    Integer.numberOfTrailingZeros(colorModel.getRedMask())
+            };
+            colorMask = colorModel.getBlueMask() | colorModel.getGreenMask()
+                    | colorModel.getRedMask();
+        }
+
+        public int compareBlock(int blockColumn, int blockRow) {
+            int actualBlockWidth = getActualBlockWidth(blockColumn);
+            int actualBlockHeight = getActualBlockHeight(blockRow);
+            int offset = (blockSize * blockRow * width)
+                    + (blockSize * blockColumn);
+
+            int diff = 0;
+            for (int h = 0; h < actualBlockHeight; ++h) {
+                int rowEnd = offset + actualBlockWidth;
+                for (int i = offset; i < rowEnd; ++i) {
+                    diff |= sourcePixels[i] ^ targetPixels[i];
+                }
+
+                // No need to go on if all channels already differ.
+                if ((diff & colorMask) == colorMask) {
+                    return ALL_CHANNELS;
+                }
+                offset += width;
+            }
+
+            int channels = 0;
+            for (int channel = 0; channel < CHANNELS_COUNT; ++channel) {
+                if (((diff >>> channelShifts[channel]) & 0xFF) != 0) {
+                    channels |= 1 << channel;
+                }
+            }
+            return channels;
+        }
+
+        public int copyBlockChannelData(int channel, int blockColumn,
+                int blockRow, byte[] buffer, int bufferOffset) {
+            int actualBlockWidth = getActualBlockWidth(blockColumn);
+            int actualBlockHeight = getActualBlockHeight(blockRow);
+            int offset = (blockSize * blockRow * width)
+                    + (blockSize * blockColumn);
+            int shift = channelShifts[channel];
+
+            for (int h = 0; h < actualBlockHeight; ++h) {
+                int rowEnd = offset + actualBlockWidth;
+                for (int i = offset; i < rowEnd; ++i) {
+                    buffer[bufferOffset++] = (byte) (targetPixels[i] >>> shift);
+                }
+                offset += width;
+            }
+            return bufferOffset;
+        }
+    }
+
+    /**
+     * @param raster The raster to check.
+     * @return Whether the raster's pixels start at the beginning of its
+     * data buffer and its rows are not padded (e.g., it is not the raster of
+     * a sub image).
+     */
+    private static boolean isCompact(WritableRaster raster) {
+        SampleModel sampleModel = raster.getSampleModel();
+        if (raster.getParent() != null
+                || raster.getDataBuffer().getNumBanks() != 1
+                || raster.getDataBuffer().getOffset() != 0) {
+            return false;
+        }
+
+        if (sampleModel instanceof PixelInterleavedSampleModel) {
+            PixelInterleavedSampleModel interleaved =
+                    (PixelInterleavedSampleModel) sampleModel;
+            return interleaved.getScanlineStride()
+                    == interleaved.getPixelStride() * raster.getWidth();
+        }
+
+        return (sampleModel instanceof SinglePixelPackedSampleModel)
+                && ((SinglePixelPackedSampleModel) sampleModel)
+                        .getScanlineStride() == raster.getWidth();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import com.applitools.eyes.EyesException;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the pixels of an image outside of the Java heap, or compressed, for
+ * images which are retained for a long time (e.g., the previous screenshot
+ * of a test, which later screenshots are compressed by).
+ * <p>
+ * The pixels are kept in the canonical layout (see {@link
+ * ImageUtils#normalize(BufferedImage)}), as rows of (A)BGR bytes without
+ * padding, so the delta compressor can compare images to them directly.
+ */
+public abstract class PixelStore {
+
+    protected final int width;
+    protected final int height;
+    protected final int type;
+    protected final int pixelLength;
+    // The number of bytes of the pixels, once inflated.
+    protected final int pixelsLength;
+
+    protected PixelStore(int width, int height, int type) {
+        this.width = width;
+        this.height = height;
+        this.type = type;
+        pixelLength = (type == BufferedImage.TYPE_4BYTE_ABGR) ? 4 : 3;
+
+        // A single buffer is limited to 2GB.
+        long length = (long) width * height * pixelLength;
+        if (length > Integer.MAX_VALUE) {
+            throw new EyesException(String.format(
+                    "Image is too large to store (%dx%d)!", width, height));
+        }
+        pixelsLength = (int) length;
+    }
+
+    /**
+     * Stores the pixels of an image in a direct (off heap) buffer.
+     * @param image The image to store.
+     * @return The store.
+     */
+    public static PixelStore offHeap(BufferedImage image) {
+        ArgumentGuard.notNull(image, "image");
+
+        image = ImageUtils.normalize(image);
+        DirectPixelStore store = new DirectPixelStore(image.getWidth(),
+                image.getHeight(), image.getType());
+        store.writeRows(image);
+        return store;
+    }
+
+    /**
+     * Stores the pixels of an image deflated, on the heap. Screenshots
+     * usually deflate to a small fraction of their size, at the cost of
+     * inflating them whenever their pixels are read.
+     * @param image The image to store.
+     * @return The store.
+     */
+    public static PixelStore compressed(BufferedImage image) {
+        ArgumentGuard.notNull(image, "image");
+
+        image = ImageUtils.normalize(image);
+        CompressedPixelStore store = new CompressedPixelStore(
+                image.getWidth(), image.getHeight(), image.getType());
+        store.writeRows(image);
+        store.finish();
+        return store;
+    }
+
+    /**
+     * @return The width of the image in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height of the image in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The type of the image, {@code TYPE_3BYTE_BGR} or {@code
+     * TYPE_4BYTE_ABGR}.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return The number of bytes the store holds.
+     */
+    public abstract int getSize();
+
+    /**
+     * @return The pixels, as rows of (A)BGR bytes without padding. The
+     * buffer is either read only or a copy owned by the caller, and its
+     * position is 0. Only absolute reads should be used if it's shared
+     * between threads. A compressed store inflates its pixels on each call,
+     * so callers should keep the buffer for as long as they read it (e.g.,
+     * for a whole comparison) rather than call this again.
+     */
+    public abstract ByteBuffer getPixels();
+
+    /**
+     * @return A new image with the stored pixels.
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(width, height, type);
+        getPixels().get(((DataBufferByte) image.getRaster()
+                .getDataBuffer()).getData());
+        return image;
+    }
+
+    /**
+     * Adds a row of pixels to the store.
+     */
+    protected abstract void writeRow(byte[] data, int offset, int length);
+
+    /**
+     * Adds the pixels of a normalized image to the store, row by row.
+     */
+    void writeRows(BufferedImage image) {
+        Raster raster = image.getRaster();
+        PixelInterleavedSampleModel sampleModel =
+                (PixelInterleavedSampleModel) raster.getSampleModel();
+        int stride = sampleModel.getScanlineStride();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+
+        // The image may be a sub image, at a translation of its parent's
+        // data.
+        int offset = raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX() * pixelLength;
+        int rowLength = width * pixelLength;
+        for (int y = 0; y < height; ++y) {
+            writeRow(data, offset, rowLength);
+            offset += stride;
+        }
+    }
+
+    private static class DirectPixelStore extends PixelStore {
+        private final ByteBuffer pixels;
+
+        DirectPixelStore(int width, int height, int type) {
+            super(width, height, type);
+            pixels = ByteBuffer.allocateDirect(pixelsLength);
+        }
+
+        public int getSize() {
+            return pixels.capacity();
+        }
+
+        public ByteBuffer getPixels() {
+            ByteBuffer readOnly = pixels.asReadOnlyBuffer();
+            // Cast, since JDK 9+ compiles clear() to a covariant override
+            // which JDK 7/8 don't have.
+            ((Buffer) readOnly).clear();
+            return readOnly;
+        }
+
+        protected void writeRow(byte[] data, int offset, int length) {
+            pixels.put(data, offset, length);
+        }
+    }
+
+    private static class CompressedPixelStore extends PixelStore {
+        private ByteArrayOutputStream deflatedStream;
+        private DeflaterOutputStream deflaterStream;
+        private Deflater deflater;
+        private byte[] deflated;
+
+        CompressedPixelStore(int width, int height, int type) {
+            super(width, height, type);
+            deflatedStream = new ByteArrayOutputStream();
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflaterStream = new DeflaterOutputStream(deflatedStream,
+                    deflater);
+        }
+
+        public int getSize() {
+            return deflated.length;
+        }
+
+        public ByteBuffer getPixels() {
+            byte[] pixels = new byte[pixelsLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(deflated);
+                int length = 0;
+                while (length < pixels.length) {
+                    int inflatedLength = inflater.inflate(pixels, length,
+                            pixels.length - length);
+                    if (inflatedLength == 0 && (inflater.finished()
+                            || inflater.needsInput())) {
+                        throw new DataFormatException("Pixels are truncated");
+                    }
+                    length += inflatedLength;
+                }
+            } catch (DataFormatException e) {
+                throw new EyesException("Failed to inflate pixels!", e);
+            } finally {
+                inflater.end();
+            }
+            // The pixels are a new copy, so there's no need for a read only
+            // view, and an array backed buffer is compared faster.
+            return ByteBuffer.wrap(pixels);
+        }
+
+        protected void writeRow(byte[] data, int offset, int length) {
+            try {
+                deflaterStream.write(data, offset, length);
+            } catch (IOException e) {
+                // Can't happen, the stream is in memory.
+                throw new EyesException("Failed to deflate pixels!", e);
+            }
+        }
+
+        /**
+         * Completes the deflated data, once all rows were written.
+         */
+        void finish() {
+            try {
+                deflaterStream.finish();
+            } catch (IOException e) {
+                throw new EyesException("Failed to deflate pixels!", e);
+            } finally {
+                deflater.end();
+            }
+            deflated = deflatedStream.toByteArray();
+            deflatedStream = null;
+            deflaterStream = null;
+            deflater = null;
+        }
+    }
+}
@@ -0,0 +1,915 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import java.awt.image.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes images as 8 bit truecolor PNG (RGB, or RGBA if the image has
+ * alpha). The filter is chosen per row, with a bias towards no filtering
+ * which suits UI screenshots, and the deflater is reused between images.
+ * <p>
+ * Pixels of byte interleaved (e.g., {@code TYPE_3BYTE_BGR}) and int packed
+ * (e.g., {@code TYPE_INT_RGB}) rasters are read directly, including those
+ * of sub images. Pixels of other images are read through {@link
+ * BufferedImage#getRGB(int, int, int, int, int[], int, int)}, so samples
+ * deeper than 8 bits are truncated.
+ * <p>
+ * Large images can be encoded in parallel, in bands of rows (see {@link
+ * #encode(BufferedImage, CompressionProfile, ExecutorService, int,
+ * OutputStream)}).
+ * <p>
+ * An encoder is not thread safe. Call {@link #end()} when it is no longer
+ * needed, to release the deflater's native memory.
+ */
+public class PngEncoder {
+
+    private static final byte[] SIGNATURE =
+            {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    static final int FILTER_NONE = 0;
+    static final int FILTER_SUB = 1;
+    static final int FILTER_UP = 2;
+    static final int FILTER_AVERAGE = 3;
+    static final int FILTER_PAETH = 4;
+    static final int FILTERS_COUNT = 5;
+
+    // The maximum length of the data of an IDAT chunk.
+    private static final int IDAT_LENGTH = 64 * 1024;
+    // The deflate window size. A band's deflater is primed with this much
+    // of the preceding filtered data.
+    private static final int DICTIONARY_LENGTH = 32 * 1024;
+    private static final int BAND_BUFFER_LENGTH = 16 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] chunkData;
+    private int chunkLength;
+
+    public PngEncoder() {
+        deflater = new Deflater();
+        crc = new CRC32();
+        chunkData = new byte[IDAT_LENGTH];
+    }
+
+    /**
+     * Encodes an image as PNG.
+     * @param image The image to encode.
+     * @param profile The compression profile, which sets the deflate level
+     *                and strategy.
+     * @return The PNG bytes representation of the image.
+     */
+    public byte[] encode(BufferedImage image, CompressionProfile profile) {
+        ByteArrayOutputStream pngBytesStream = new ByteArrayOutputStream();
+        try {
+            encode(image, profile, pngBytesStream);
+        } catch (IOException e) {
+            // Can't happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return pngBytesStream.toByteArray();
+    }
+
+    /**
+     * Encodes an image as PNG, and writes it to the given stream.
+     * @param image The image to encode.
+     * @param profile The compression profile, which sets the deflate level
+     *                and strategy.
+     * @param outputStream The stream to which the PNG is written. Not
+     *                     closed by this method.
+     * @throws IOException If there was a problem writing to the stream.
+     */
+    public void encode(BufferedImage image, CompressionProfile profile,
+                       OutputStream outputStream) throws IOException {
+        ArgumentGuard.notNull(image, "image");
+        ArgumentGuard.notNull(profile, "profile");
+        ArgumentGuard.notNull(outputStream, "outputStream");
+
+        RowReader rowReader = RowReader.create(image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int pixelLength = rowReader.getPixelLength();
+
+        outputStream.write(SIGNATURE);
+        writeHeader(outputStream, width, height,
+                pixelLength == 4 ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+
+        deflater.reset();
+        deflater.setLevel(profile.getLevel());
+        deflater.setStrategy(profile.getStrategy());
+        chunkLength = 0;
+
+        // At the fastest level, time spent on choosing filters isn't worth
+        // it.
+        RowFilter rowFilter = new RowFilter(width * pixelLength,
+                pixelLength, profile.getLevel() > Deflater.BEST_SPEED);
+        for (int y = 0; y < height; ++y) {
+            rowReader.readRow(y, rowFilter.getCurrentRow());
+            deflate(outputStream, rowFilter.filter(), 0,
+                    rowFilter.getFilteredLength());
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            drain(outputStream);
+        }
+        if (chunkLength > 0) {
+            writeChunk(outputStream, IDAT, chunkData, chunkLength);
+        }
+
+        writeChunk(outputStream, IEND, chunkData, 0);
+    }
+
+    /**
+     * Encodes an image as PNG, and writes it to the given stream. When an
+     * executor service is given, the image is split into bands of rows, and
+     * each band is filtered and deflated independently on the executor.
+     * Every band's deflater is primed with the last 32KB of filtered data
+     * preceding the band (as pigz does), and all bands but the last end
+     * with a sync flush, so they are concatenated into a single zlib
+     * stream. The rows are filtered exactly as in sequential encoding.
+     * @param image The image to encode.
+     * @param profile The compression profile, which sets the deflate level
+     *                and strategy.
+     * @param executorService The executor on which the bands are encoded,
+     *                        or {@code null} to encode on the calling
+     *                        thread.
+     * @param parallelism The number of bands the image is split into.
+     *                    Ignored if {@code executorService} is {@code
+     *                    null}.
+     * @param outputStream The stream to which the PNG is written. Not
+     *                     closed by this method.
+     * @throws IOException If there was a problem writing to the stream, or
+     * the encoding was interrupted.
+     */
+    public void encode(BufferedImage image, CompressionProfile profile,
+                       ExecutorService executorService, int parallelism,
+                       OutputStream outputStream) throws IOException {
+        ArgumentGuard.greaterThanZero(parallelism, "parallelism");
+
+        int height = image.getHeight();
+        int bandsCount = Math.min(parallelism, height);
+        if (executorService == null || bandsCount == 1) {
+            encode(image, profile, outputStream);
+            return;
+        }
+
+        ArgumentGuard.notNull(image, "image");
+        ArgumentGuard.notNull(profile, "profile");
+        ArgumentGuard.notNull(outputStream, "outputStream");
+
+        int pixelLength = RowReader.create(image).getPixelLength();
+        outputStream.write(SIGNATURE);
+        writeHeader(outputStream, image.getWidth(), height,
+                pixelLength == 4 ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        chunkLength = 0;
+
+        int bandHeight = (height / bandsCount)
+                + ((height % bandsCount) == 0 ? 0 : 1);
+        List<Future<Band>> bands = new ArrayList<Future<Band>>();
+        try {
+            for (int firstRow = 0; firstRow < height;
+                    firstRow += bandHeight) {
+                bands.add(executorService.submit(new BandEncoder(image,
+                        profile, firstRow,
+                        Math.min(firstRow + bandHeight, height))));
+            }
+
+            writeData(outputStream, getZlibHeader(profile.getLevel()));
+            long adler = new Adler32().getValue();
+            for (Future<Band> future : bands) {
+                Band band = ImageDeltaCompressor.getResult(future);
+                writeData(outputStream, band.deflated);
+                adler = combineAdler32(adler, band.adler, band.length);
+            }
+            byte[] adlerBytes = new byte[4];
+            writeInt(adlerBytes, 0, (int) adler);
+            writeData(outputStream, adlerBytes);
+        } finally {
+            // Stop bands which are still running, if any.
+            for (Future<Band> band : bands) {
+                band.cancel(false);
+            }
+        }
+        if (chunkLength > 0) {
+            writeChunk(outputStream, IDAT, chunkData, chunkLength);
+        }
+
+        writeChunk(outputStream, IEND, chunkData, 0);
+    }
+
+    /**
+     * Releases the deflater. The encoder can't be used afterwards.
+     */
+    public void end() {
+        deflater.end();
+    }
+
+    private void writeHeader(OutputStream outputStream, int width,
+                             int height, int colorType) throws IOException {
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8; // Bit depth.
+        header[9] = (byte) colorType;
+        // Compression method, filter method and interlace method are all 0.
+        writeChunk(outputStream, IHDR, header, header.length);
+    }
+
+    private void deflate(OutputStream outputStream, byte[] data, int offset,
+                         int length) throws IOException {
+        deflater.setInput(data, offset, length);
+        while (!deflater.needsInput()) {
+            drain(outputStream);
+        }
+    }
+
+    /**
+     * Deflates into the pending IDAT chunk, and writes the chunk if it's
+     * full.
+     */
+    private void drain(OutputStream outputStream) throws IOException {
+        chunkLength += deflater.deflate(chunkData, chunkLength,
+                chunkData.length - chunkLength);
+        if (chunkLength == chunkData.length) {
+            writeChunk(outputStream, IDAT, chunkData, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    /**
+     * Writes IDAT data through the pending IDAT chunk.
+     */
+    private void writeData(OutputStream outputStream, byte[] data)
+            throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset,
+                    chunkData.length - chunkLength);
+            System.arraycopy(data, offset, chunkData, chunkLength, length);
+            chunkLength += length;
+            offset += length;
+            if (chunkLength == chunkData.length) {
+                writeChunk(outputStream, IDAT, chunkData, chunkLength);
+                chunkLength = 0;
+            }
+        }
+    }
+
+    private void writeChunk(OutputStream outputStream, byte[] type,
+                            byte[] data, int length) throws IOException {
+        byte[] intBytes = new byte[4];
+        writeInt(intBytes, 0, length);
+        outputStream.write(intBytes);
+        outputStream.write(type);
+        outputStream.write(data, 0, length);
+
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, length);
+        writeInt(intBytes, 0, (int) crc.getValue());
+        outputStream.write(intBytes);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * @param level The deflate level.
+     * @return The zlib header of a (32KB window) deflate stream.
+     */
+    private static byte[] getZlibHeader(int level) {
+        int compressionInfo = 0x78;
+        int levelFlags = (level < 2) ? 0 : (level < 6) ? 1 :
+                (level == 6) ? 2 : 3;
+        int flags = levelFlags << 6;
+        flags += 31 - (((compressionInfo << 8) + flags) % 31);
+        return new byte[] {(byte) compressionInfo, (byte) flags};
+    }
+
+    /**
+     * Computes the Adler-32 checksum of two concatenated sequences from
+     * their checksums (as zlib's adler32_combine).
+     * @param adler1 The checksum of the first sequence.
+     * @param adler2 The checksum of the second sequence.
+     * @param length2 The length of the second sequence.
+     * @return The checksum of the concatenated sequence.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF)
+                + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * A band of rows, filtered and deflated.
+     */
+    private static class Band {
+        // The raw deflate bytes. Sync flushed, or finished if it's the last
+        // band.
+        public final byte[] deflated;
+        // The Adler-32 checksum and the length of the filtered rows.
+        public final long adler;
+        public final long length;
+
+        public Band(byte[] deflated, long adler, long length) {
+            this.deflated = deflated;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Filters and deflates a band of rows.
+     */
+    private static class BandEncoder implements Callable<Band> {
+        private final BufferedImage image;
+        private final CompressionProfile profile;
+        private final int firstRow;
+        private final int lastRow;
+
+        /**
+         * @param image The image to encode.
+         * @param profile The compression profile.
+         * @param firstRow The first row of the band (inclusive).
+         * @param lastRow The last row of the band (exclusive).
+         */
+        public BandEncoder(BufferedImage image, CompressionProfile profile,
+                           int firstRow, int lastRow) {
+            this.image = image;
+            this.profile = profile;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+
+        public Band call() {
+            // Readers may hold buffers, so each band has its own.
+            RowReader rowReader = RowReader.create(image);
+            int pixelLength = rowReader.getPixelLength();
+            RowFilter rowFilter = new RowFilter(
+                    image.getWidth() * pixelLength, pixelLength,
+                    profile.getLevel() > Deflater.BEST_SPEED);
+            int filteredLength = rowFilter.getFilteredLength();
+
+            ByteArrayOutputStream bandStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BAND_BUFFER_LENGTH];
+            Adler32 adler = new Adler32();
+            Deflater deflater = profile.createDeflater(true);
+            try {
+                if (firstRow > 0) {
+                    deflater.setDictionary(createDictionary(rowReader,
+                            rowFilter));
+                }
+
+                for (int y = firstRow; y < lastRow; ++y) {
+                    rowReader.readRow(y, rowFilter.getCurrentRow());
+                    byte[] filtered = rowFilter.filter();
+                    adler.update(filtered, 0, filteredLength);
+                    deflater.setInput(filtered, 0, filteredLength);
+                    while (!deflater.needsInput()) {
+                        bandStream.write(buffer, 0,
+                                deflater.deflate(buffer));
+                    }
+                }
+
+                if (lastRow == image.getHeight()) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        bandStream.write(buffer, 0,
+                                deflater.deflate(buffer));
+                    }
+                } else {
+                    // Sync flush, so the band ends on a byte boundary.
+                    int length;
+                    do {
+                        length = deflater.deflate(buffer, 0, buffer.length,
+                                Deflater.SYNC_FLUSH);
+                        bandStream.write(buffer, 0, length);
+                    } while (length == buffer.length);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            return new Band(bandStream.toByteArray(), adler.getValue(),
+                    (long) filteredLength * (lastRow - firstRow));
+        }
+
+        /**
+         * Filters the rows preceding the band, as the band before it does,
+         * and leaves the filter ready for the band's first row.
+         * @return The last {@link #DICTIONARY_LENGTH} bytes of filtered
+         * data before the band.
+         */
+        private byte[] createDictionary(RowReader rowReader,
+                                        RowFilter rowFilter) {
+            int filteredLength = rowFilter.getFilteredLength();
+            int dictionaryRows = Math.min(firstRow,
+                    (DICTIONARY_LENGTH + filteredLength - 1) / filteredLength);
+            int y = firstRow - dictionaryRows;
+            if (y > 0) {
+                rowReader.readRow(y - 1, rowFilter.getCurrentRow());
+                rowFilter.skip();
+            }
+
+            byte[] filteredRows = new byte[dictionaryRows * filteredLength];
+            for (int offset = 0; y < firstRow; ++y,
+                    offset += filteredLength) {
+                rowReader.readRow(y, rowFilter.getCurrentRow());
+                System.arraycopy(rowFilter.filter(), 0, filteredRows, offset,
+                        filteredLength);
+            }
+
+            int dictionaryLength = Math.min(filteredRows.length,
+                    DICTIONARY_LENGTH);
+            byte[] dictionary = new byte[dictionaryLength];
+            System.arraycopy(filteredRows,
+                    filteredRows.length - dictionaryLength, dictionary, 0,
+                    dictionaryLength);
+            return dictionary;
+        }
+    }
+
+    /**
+     * Filters rows of pixels, choosing the filter per row. Holds the current
+     * and previous (unfiltered) rows.
+     * <p>
+     * A row which equals the previous row is filtered with Up (all zeros).
+     * Otherwise, the filter which minimizes the sum of absolute differences
+     * is chosen, but None is strongly preferred: UI screenshots are mostly
+     * flat colors and text, which deflate finds repetitions in best when
+     * unfiltered, even though another filter has a lower sum. Photos and
+     * gradients, for which filtering pays off, have much lower sums when
+     * filtered.
+     */
+    static class RowFilter {
+        // None is only replaced by a filter whose sum is at least this many
+        // times smaller. Measured on typical screenshots.
+        private static final int NONE_BIAS = 12;
+
+        private final int rowLength;
+        private final int pixelLength;
+        private final boolean adaptive;
+        // The unfiltered rows, with a leading byte for the filter type, so
+        // that the unfiltered row is also the output of the None filter.
+        private byte[] currentRow;
+        private byte[] previousRow;
+        // The output of each of the other filters, by filter type.
+        private final byte[][] filteredRows;
+
+        /**
+         * @param rowLength The number of bytes in a row, excluding the
+         *                  filter type.
+         * @param pixelLength The number of bytes per pixel.
+         * @param adaptive Whether to try all the filters, or only None and
+         *                 Up (for identical rows).
+         */
+        RowFilter(int rowLength, int pixelLength, boolean adaptive) {
+            this.rowLength = rowLength;
+            this.pixelLength = pixelLength;
+            this.adaptive = adaptive;
+            currentRow = new byte[rowLength + 1];
+            previousRow = new byte[rowLength + 1];
+            filteredRows = new byte[FILTERS_COUNT][];
+            for (int filter = FILTER_SUB; filter < FILTERS_COUNT; ++filter) {
+                filteredRows[filter] = new byte[rowLength + 1];
+                filteredRows[filter][0] = (byte) filter;
+            }
+        }
+
+        /**
+         * @return The buffer into which the next row should be read,
+         * starting at offset 1.
+         */
+        byte[] getCurrentRow() {
+            return currentRow;
+        }
+
+        /**
+         * @return The length of a filtered row, including the filter type.
+         */
+        int getFilteredLength() {
+            return rowLength + 1;
+        }
+
+        /**
+         * Makes the current row the previous row, without filtering it.
+         */
+        void skip() {
+            byte[] previous = previousRow;
+            previousRow = currentRow;
+            currentRow = previous;
+        }
+
+        /**
+         * Filters the current row, and makes it the previous row.
+         * @return The filtered row, starting with the filter type.
+         */
+        byte[] filter() {
+            byte[] best = currentRow;
+            currentRow[0] = FILTER_NONE;
+            // Identical rows (e.g., margins and backgrounds) are common in
+            // screenshots.
+            if (apply(FILTER_UP, filteredRows[FILTER_UP], 1) == 0) {
+                best = filteredRows[FILTER_UP];
+            } else if (adaptive) {
+                long bestSum = sumAbsolute(currentRow) / NONE_BIAS;
+                for (int filter = FILTER_SUB; filter < FILTERS_COUNT;
+                        ++filter) {
+                    byte[] filtered = filteredRows[filter];
+                    long sum = apply(filter, filtered, bestSum);
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        best = filtered;
+                    }
+                }
+            }
+
+            skip();
+            return best;
+        }
+
+        /**
+         * Applies a filter to the current row.
+         * @param filter The filter type. Not {@link #FILTER_NONE}.
+         * @param output The buffer to which the filtered row is written,
+         *               starting at offset 1.
+         * @param limit The sum of absolute differences beyond which there is
+         *              no need to go on, since the filter won't be used.
+         * @return The sum of the absolute differences (the filtered bytes as
+         * signed values), or a value not smaller than {@code limit} if the
+         * filtering was stopped.
+         */
+        long apply(int filter, byte[] output, long limit) {
+            byte[] row = currentRow;
+            byte[] prior = previousRow;
+            int bpp = pixelLength;
+            int end = rowLength + 1;
+            long sum = 0;
+            int i = 1;
+            int value;
+            switch (filter) {
+                case FILTER_SUB:
+                    for (; i <= bpp; ++i) {
+                        value = output[i] = row[i];
+                        sum += (value < 0) ? -value : value;
+                    }
+                    for (; i < end; ++i) {
+                        value = output[i] = (byte) (row[i] - row[i - bpp]);
+                        sum += (value < 0) ? -value : value;
+                        // Checking once in a while is enough.
+                        if ((i & 0xFF) == 0 && sum >= limit) {
+                            return sum;
+                        }
+                    }
+                    break;
+                case FILTER_UP:
+                    for (; i < end; ++i) {
+                        value = output[i] = (byte) (row[i] - prior[i]);
+                        sum += (value < 0) ? -value : value;
+                        if ((i & 0xFF) == 0 && sum >= limit) {
+                            return sum;
+                        }
+                    }
+                    break;
+                case FILTER_AVERAGE:
+                    for (; i <= bpp; ++i) {
+                        value = output[i] =
+                                (byte) (row[i] - ((prior[i] & 0xFF) >> 1));
+                        sum += (value < 0) ? -value : value;
+                    }
+                    for (; i < end; ++i) {
+                        value = output[i] = (byte) (row[i] - (((row[i - bpp]
+                                & 0xFF) + (prior[i] & 0xFF)) >> 1));
+                        sum += (value < 0) ? -value : value;
+                        if ((i & 0xFF) == 0 && sum >= limit) {
+                            return sum;
+                        }
+                    }
+                    break;
+                case FILTER_PAETH:
+                    for (; i <= bpp; ++i) {
+                        value = output[i] = (byte) (row[i] - prior[i]);
+                        sum += (value < 0) ? -value : value;
+                    }
+                    for (; i < end; ++i) {
+                        value = output[i] = (byte) (row[i] - paeth(
+                                row[i - bpp] & 0xFF, prior[i] & 0xFF,
+                                prior[i - bpp] & 0xFF));
+                        sum += (value < 0) ? -value : value;
+                        if ((i & 0xFF) == 0 && sum >= limit) {
+                            return sum;
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter: "
+                            + filter);
+            }
+            return sum;
+        }
+
+        /**
+         * @return The sum of the bytes of a row as signed values.
+         */
+        private long sumAbsolute(byte[] row) {
+            long sum = 0;
+            int end = rowLength + 1;
+            for (int i = 1; i < end; ++i) {
+                int value = row[i];
+                sum += (value < 0) ? -value : value;
+            }
+            return sum;
+        }
+
+        static int paeth(int left, int above, int upperLeft) {
+            int estimate = left + above - upperLeft;
+            int leftDistance = Math.abs(estimate - left);
+            int aboveDistance = Math.abs(estimate - above);
+            int upperLeftDistance = Math.abs(estimate - upperLeft);
+            if (leftDistance <= aboveDistance
+                    && leftDistance <= upperLeftDistance) {
+                return left;
+            }
+            if (aboveDistance <= upperLeftDistance) {
+                return above;
+            }
+            return upperLeft;
+        }
+    }
+
+    /**
+     * Reads rows of an image as 8 bit RGB or RGBA samples.
+     */
+    abstract static class RowReader {
+        protected final int width;
+        protected final int pixelLength;
+
+        protected RowReader(int width, boolean hasAlpha) {
+            this.width = width;
+            pixelLength = hasAlpha ? 4 : 3;
+        }
+
+        /**
+         * @param image The image to read.
+         * @return A reader which accesses the image's raster directly if
+         * possible.
+         */
+        static RowReader create(BufferedImage image) {
+            if (ByteRowReader.isSupported(image)) {
+                return new ByteRowReader(image);
+            }
+            if (IntRowReader.isSupported(image)) {
+                return new IntRowReader(image);
+            }
+            return new ArgbRowReader(image);
+        }
+
+        /**
+         * @return The number of bytes per pixel: 3 for RGB, or 4 for RGBA.
+         */
+        int getPixelLength() {
+            return pixelLength;
+        }
+
+        /**
+         * Reads a row of pixels.
+         * @param y The index of the row.
+         * @param row The buffer to which the samples are written, starting
+         *            at offset 1.
+         */
+        abstract void readRow(int y, byte[] row);
+
+        /**
+         * @return Whether the image's samples are non-premultiplied sRGB.
+         */
+        protected static boolean isPlainSrgb(ColorModel colorModel) {
+            return colorModel.getColorSpace().isCS_sRGB()
+                    && !colorModel.isAlphaPremultiplied();
+        }
+    }
+
+    /**
+     * Reads byte interleaved rasters (e.g., {@code TYPE_3BYTE_BGR}).
+     */
+    private static class ByteRowReader extends RowReader {
+        private final byte[] pixels;
+        private final int[] sampleOffsets;
+        private final int pixelStride;
+        private final int scanlineStride;
+        private final int firstPixelOffset;
+
+        public static boolean isSupported(BufferedImage image) {
+            ColorModel colorModel = image.getColorModel();
+            WritableRaster raster = image.getRaster();
+            if (!(colorModel instanceof ComponentColorModel)
+                    || !isPlainSrgb(colorModel)
+                    || !(raster.getSampleModel()
+                            instanceof PixelInterleavedSampleModel)
+                    || !(raster.getDataBuffer() instanceof DataBufferByte)
+                    || raster.getDataBuffer().getNumBanks() != 1) {
+                return false;
+            }
+            int bandsCount = raster.getNumBands();
+            return (bandsCount == 3 && !colorModel.hasAlpha())
+                    || (bandsCount == 4 && colorModel.hasAlpha());
+        }
+
+        public ByteRowReader(BufferedImage image) {
+            super(image.getWidth(), image.getColorModel().hasAlpha());
+
+            WritableRaster raster = image.getRaster();
+            PixelInterleavedSampleModel sampleModel =
+                    (PixelInterleavedSampleModel) raster.getSampleModel();
+            pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+            // The bands are in the order of the color model's components,
+            // i.e., R, G, B and A.
+            sampleOffsets = sampleModel.getBandOffsets();
+            pixelStride = sampleModel.getPixelStride();
+            scanlineStride = sampleModel.getScanlineStride();
+            // Sub images share their parent's data, at a translation.
+            firstPixelOffset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+        }
+
+        void readRow(int y, byte[] row) {
+            int offset = firstPixelOffset + y * scanlineStride;
+            int end = 1 + width * pixelLength;
+            int r = sampleOffsets[0], g = sampleOffsets[1],
+                    b = sampleOffsets[2];
+            if (pixelLength == 3) {
+                for (int i = 1; i < end; i += 3) {
+                    row[i] = pixels[offset + r];
+                    row[i + 1] = pixels[offset + g];
+                    row[i + 2] = pixels[offset + b];
+                    offset += pixelStride;
+                }
+            } else {
+                int a = sampleOffsets[3];
+                for (int i = 1; i < end; i += 4) {
+                    row[i] = pixels[offset + r];
+                    row[i + 1] = pixels[offset + g];
+                    row[i + 2] = pixels[offset + b];
+                    row[i + 3] = pixels[offset + a];
+                    offset += pixelStride;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads int packed rasters with 8 bit channels (e.g., {@code
+     * TYPE_INT_RGB}).
+     */
+    private static class IntRowReader extends RowReader {
+        private final int[] pixels;
+        private final int scanlineStride;
+        private final int firstPixelOffset;
+        private final int redShift;
+        private final int greenShift;
+        private final int blueShift;
+        private final int alphaShift;
+
+        public static boolean isSupported(BufferedImage image) {
+            ColorModel colorModel = image.getColorModel();
+            WritableRaster raster = image.getRaster();
+            if (!(colorModel instanceof DirectColorModel)
+                    || !isPlainSrgb(colorModel)
+                    || !(raster.getSampleModel()
+                            instanceof SinglePixelPackedSampleModel)
+                    || !(raster.getDataBuffer() instanceof DataBufferInt)
+                    || raster.getDataBuffer().getNumBanks() != 1) {
+                return false;
+            }
+
+            DirectColorModel directModel = (DirectColorModel) colorModel;
+            return isByteMask(directModel.getRedMask())
+                    && isByteMask(directModel.getGreenMask())
+                    && isByteMask(directModel.getBlueMask())
+                    && (!directModel.hasAlpha()
+                        || isByteMask(directModel.getAlphaMask()));
+        }
+
+        /**
+         * @return Whether the mask consists of 8 consecutive bits, aligned to
+         * a byte.
+         */
+        private static boolean isByteMask(int mask) {
+            int shift = Integer.numberOfTrailingZeros(mask);
+            return (shift % 8) == 0 && (mask >>> shift) == 0xFF;
+        }
+
+        public IntRowReader(BufferedImage image) {
+            super(image.getWidth(), image.getColorModel().hasAlpha());
+
+            WritableRaster raster = image.getRaster();
+            SinglePixelPackedSampleModel sampleModel =
+                    (SinglePixelPackedSampleModel) raster.getSampleModel();
+            pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            scanlineStride = sampleModel.getScanlineStride();
+            firstPixelOffset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * scanlineStride
+                    - raster.getSampleModelTranslateX();
+
+            DirectColorModel colorModel =
+                    (DirectColorModel) image.getColorModel();
+            redShift = Integer.numberOfTrailingZeros(colorModel.getRedMask());
+            greenShift = Integer.numberOfTrailingZeros(
+                    colorModel.getGreenMask());
+            blueShift = Integer.numberOfTrailingZeros(
+                    colorModel.getBlueMask());
+            alphaShift = colorModel.hasAlpha() ?
+                    Integer.numberOfTrailingZeros(colorModel.getAlphaMask()) :
+                    0;
+        }
+
+        void readRow(int y, byte[] row) {
+            int offset = firstPixelOffset + y * scanlineStride;
+            int end = offset + width;
+            int i = 1;
+            if (pixelLength == 3) {
+                for (; offset < end; ++offset) {
+                    int pixel = pixels[offset];
+                    row[i++] = (byte) (pixel >>> redShift);
+                    row[i++] = (byte) (pixel >>> greenShift);
+                    row[i++] = (byte) (pixel >>> blueShift);
+                }
+            } else {
+                for (; offset < end; ++offset) {
+                    int pixel = pixels[offset];
+                    row[i++] = (byte) (pixel >>> redShift);
+                    row[i++] = (byte) (pixel >>> greenShift);
+                    row[i++] = (byte) (pixel >>> blueShift);
+                    row[i++] = (byte) (pixel >>> alphaShift);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads any image, through its (non-premultiplied sRGB) ARGB pixels.
+     */
+    private static class ArgbRowReader extends RowReader {
+        private final BufferedImage image;
+        private final int[] argbRow;
+
+        public ArgbRowReader(BufferedImage image) {
+            super(image.getWidth(), image.getColorModel().hasAlpha());
+            this.image = image;
+            argbRow = new int[width];
+        }
+
+        void readRow(int y, byte[] row) {
+            image.getRGB(0, y, width, 1, argbRow, 0, width);
+            int i = 1;
+            for (int x = 0; x < width; ++x) {
+                int pixel = argbRow[x];
+                row[i++] = (byte) (pixel >>> 16);
+                row[i++] = (byte) (pixel >>> 8);
+                row[i++] = (byte) pixel;
+                if (pixelLength == 4) {
+                    row[i++] = (byte) (pixel >>> 24);
+                }
+            }
+        }
+    }
+}
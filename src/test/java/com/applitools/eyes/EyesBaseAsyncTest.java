@@ -0,0 +1,200 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of asynchronous checkpoints (see {@link
+ * EyesBase#checkWindowBaseAsync(RegionProvider, String, boolean)}), matched
+ * by a stub server connector.
+ */
+public class EyesBaseAsyncTest {
+
+    private TestEyes eyes;
+    private StubServerConnector server;
+
+    @Before
+    public void openEyes() {
+        eyes = new TestEyes();
+        server = eyes.getServer();
+        eyes.openBase("app", "test", new RectangleSize(40, 30));
+    }
+
+    @After
+    public void abortEyes() {
+        server.unblockMatches();
+        eyes.abortIfNotClosed();
+    }
+
+    @Test
+    public void testCheckpointsAreMatchedInOrder() throws Exception {
+        server.blockMatches();
+        List<Future<MatchResult>> checkpoints = checkAsync("a", "b", "c");
+        server.unblockMatches();
+        eyes.close();
+
+        assertEquals(Arrays.asList("a", "b", "c"), server.getMatchedTags());
+        for (Future<MatchResult> checkpoint : checkpoints) {
+            assertTrue(checkpoint.get().getAsExpected());
+        }
+        assertEquals(1, server.getStoppedSessionsCount());
+    }
+
+    @Test
+    public void testPendingCheckpointsAreBounded() throws Exception {
+        eyes.setMaxPendingCheckpoints(2);
+        server.blockMatches();
+        checkAsync("a", "b");
+        server.awaitMatches(1);
+
+        // A third checkpoint waits for the first one to complete.
+        final CountDownLatch checked = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            public void run() {
+                eyes.checkWindowBaseAsync(TestEyes.WHOLE_WINDOW, "c", false);
+                checked.countDown();
+            }
+        };
+        thread.start();
+        assertFalse(checked.await(300, TimeUnit.MILLISECONDS));
+
+        server.unblockMatches();
+        assertTrue(checked.await(10, TimeUnit.SECONDS));
+        thread.join();
+        eyes.close();
+
+        assertEquals(Arrays.asList("a", "b", "c"), server.getMatchedTags());
+    }
+
+    @Test
+    public void testAbortCancelsPendingCheckpoints() throws Exception {
+        server.blockMatches();
+        final List<Future<MatchResult>> checkpoints =
+                checkAsync("a", "b", "c");
+        server.awaitMatches(1);
+
+        // The started checkpoint is waited for, so it's only unblocked once
+        // the others were cancelled.
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    while (!checkpoints.get(1).isCancelled()
+                            || !checkpoints.get(2).isCancelled()) {
+                        Thread.sleep(10);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                server.unblockMatches();
+            }
+        };
+        thread.start();
+        eyes.abortIfNotClosed();
+        thread.join();
+
+        assertEquals(Arrays.asList("a"), server.getMatchedTags());
+        assertEquals(1, server.getCompletedMatchesCount());
+        assertTrue(server.getIsAborted());
+    }
+
+    @Test
+    public void testCloseThrowsFirstCheckpointFailure() {
+        checkAsync("a", "fail 1", "mismatch", "fail 2", "b");
+        try {
+            eyes.close(false);
+            fail("Expected the checkpoint's failure");
+        } catch (EyesException e) {
+            assertEquals("Match failed: fail 1", e.getMessage());
+        }
+
+        // All the checkpoints were matched, and the session was ended.
+        assertEquals(Arrays.asList("a", "fail 1", "mismatch", "fail 2", "b"),
+                server.getMatchedTags());
+        assertEquals(1, server.getStoppedSessionsCount());
+        assertFalse(server.getIsAborted());
+    }
+
+    @Test
+    public void testAbortIgnoresCheckpointFailure()
+            throws InterruptedException {
+        checkAsync("fail");
+        server.awaitMatches(1);
+        eyes.abortIfNotClosed();
+
+        assertEquals(Arrays.asList("fail"), server.getMatchedTags());
+        assertTrue(server.getIsAborted());
+    }
+
+    @Test
+    public void testCheckpointsDontWriteCallerState() throws Exception {
+        RecordingReferenceImageCache cache =
+                new RecordingReferenceImageCache();
+        eyes.setReferenceImageCache(cache);
+
+        Future<MatchResult> mismatch = checkAsync("a", "mismatch").get(1);
+        assertFalse(mismatch.get().getAsExpected());
+        // The mismatch is only published to the caller once the pending
+        // checkpoints are waited for, so the next match runs once, strictly.
+        eyes.checkWindowBase(TestEyes.WHOLE_WINDOW, "b", false, 50);
+        eyes.close();
+
+        List<MatchWindowData> matches = server.getMatches();
+        assertEquals(3, matches.size());
+        assertFalse(matches.get(2).getIgnoreMismatch());
+        // Each checkpoint was cached under its own key.
+        assertEquals(Arrays.asList("app/test/1", "app/test/2", "app/test/3"),
+                cache.getKeys());
+    }
+
+    private List<Future<MatchResult>> checkAsync(String... tags) {
+        List<Future<MatchResult>> checkpoints =
+                new ArrayList<Future<MatchResult>>();
+        for (String tag : tags) {
+            checkpoints.add(eyes.checkWindowBaseAsync(TestEyes.WHOLE_WINDOW,
+                    tag, false));
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Records the keys under which images are cached, without caching them.
+     */
+    private static class RecordingReferenceImageCache
+            implements ReferenceImageCache {
+        private final List<String> keys = new ArrayList<String>();
+
+        public synchronized void put(String checkpointKey, String id,
+                                     BufferedImage image) {
+            keys.add(checkpointKey);
+        }
+
+        public String getReferenceId(String checkpointKey) {
+            return null;
+        }
+
+        public BufferedImage getImage(String id) {
+            return null;
+        }
+
+        public synchronized List<String> getKeys() {
+            return new ArrayList<String>(keys);
+        }
+    }
+}
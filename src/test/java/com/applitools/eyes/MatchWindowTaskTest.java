@@ -0,0 +1,262 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the match retry loop of {@link MatchWindowTask}, with a stub
+ * server connector which only matches captures titled "good".
+ */
+public class MatchWindowTaskTest {
+
+    private StubServerConnector server;
+    private CaptureScript captures;
+    private MatchWindowTask task;
+
+    @Before
+    public void createTask() {
+        server = new StubServerConnector() {
+            @Override
+            protected MatchResult getResult(MatchWindowData matchData,
+                                            int index) {
+                MatchResult result = new MatchResult();
+                result.setAsExpected(
+                        matchData.getAppOutput().getTitle().equals("good"));
+                result.setWindowId("window-" + index);
+                return result;
+            }
+        };
+        captures = new CaptureScript();
+        task = new MatchWindowTask(new Logger(), server,
+                server.startSession(null), 0, captures);
+        task.setRetryPolicy(RetryPolicy.fixed(20));
+    }
+
+    @After
+    public void closeTask() {
+        task.close();
+    }
+
+    @Test
+    public void testSingleMatchWithoutTimeout() {
+        captures.add("bad", 0x000000);
+
+        MatchResult result = match(false, 0);
+
+        assertFalse(result.getAsExpected());
+        assertEquals(Arrays.asList("bad"), getMatchedTitles());
+        assertFalse(server.getMatches().get(0).getIgnoreMismatch());
+        assertEquals(1, captures.getCapturesCount());
+    }
+
+    @Test
+    public void testUnchangedCapturesAreNotMatched() {
+        captures.add("bad", 0x000000);
+
+        MatchResult result = match(false, 300);
+
+        // The window was captured on each retry, but only matched again
+        // strictly, once the timeout expired, without being captured again.
+        assertFalse(result.getAsExpected());
+        assertTrue(captures.getCapturesCount() > 2);
+        assertEquals(Arrays.asList("bad", "bad"), getMatchedTitles());
+        List<MatchWindowData> matches = server.getMatches();
+        assertTrue(matches.get(0).getIgnoreMismatch());
+        assertFalse(matches.get(1).getIgnoreMismatch());
+    }
+
+    @Test
+    public void testUnchangedMismatchIsIgnoredOnce() {
+        captures.add("bad", 0x000000);
+
+        MatchResult result = match(true, 300);
+
+        assertFalse(result.getAsExpected());
+        assertEquals(Arrays.asList("bad"), getMatchedTitles());
+    }
+
+    @Test
+    public void testChangedCaptureIsMatched() {
+        captures.add("bad", 0x000000);
+        captures.add("bad", 0x000000);
+        captures.add("good", 0xFFFFFF);
+
+        MatchResult result = match(false, 5000);
+
+        assertTrue(result.getAsExpected());
+        assertEquals(Arrays.asList("bad", "good"), getMatchedTitles());
+        assertEquals(0xFFFFFF,
+                result.getScreenshot().getImage().getRGB(0, 0) & 0xFFFFFF);
+        assertEquals(3, captures.getCapturesCount());
+    }
+
+    @Test
+    public void testChangeTriggeredPolicyMatchesSettledCaptures() {
+        task.setRetryPolicy(RetryPolicy.changeTriggered(20));
+        captures.add("bad", 0x000000);
+        captures.add("frame 1", 0x333333);
+        captures.add("frame 2", 0x666666);
+        captures.add("good", 0xFFFFFF);
+        captures.add("good", 0xFFFFFF);
+
+        MatchResult result = match(false, 5000);
+
+        // The frames of the animation changed since the capture before
+        // them, so only the capture which stayed the same is matched.
+        assertTrue(result.getAsExpected());
+        assertEquals(Arrays.asList("bad", "good"), getMatchedTitles());
+    }
+
+    @Test
+    public void testRetriesAreScheduledByPolicy() {
+        // Retries at 10, 30, 70 and 150 ms, and the next one would be past
+        // the timeout.
+        task.setRetryPolicy(RetryPolicy.exponential(10, 2, 1000));
+        captures.add("bad", 0x000000);
+
+        match(true, 300);
+
+        // Retries which start late are scheduled from their actual start,
+        // so there may be fewer of them.
+        int capturesCount = captures.getCapturesCount();
+        assertTrue("Captures: " + capturesCount,
+                capturesCount > 1 && capturesCount <= 5);
+    }
+
+    @Test
+    public void testFirstMatchWaitsForStableWindow() {
+        task.setStabilization(3, 10, 5000);
+        captures.add("bad", 0x000000);
+        captures.add("good", 0xFFFFFF);
+
+        MatchResult result = match(false, 0);
+
+        // Only the third identical capture in a row is matched.
+        assertTrue(result.getAsExpected());
+        assertEquals(Arrays.asList("good"), getMatchedTitles());
+        assertEquals(4, captures.getCapturesCount());
+    }
+
+    @Test
+    public void testStabilizationTimeout() {
+        task.setStabilization(2, 10, 100);
+        for (int i = 0; i < 100; ++i) {
+            captures.add("frame " + i, i);
+        }
+
+        match(false, 0);
+
+        // The window kept changing, so the last capture is matched once the
+        // timeout expires.
+        int capturesCount = captures.getCapturesCount();
+        assertTrue("Captures: " + capturesCount,
+                capturesCount > 1 && capturesCount <= 10);
+        assertEquals(Arrays.asList("frame " + (capturesCount - 1)),
+                getMatchedTitles());
+    }
+
+    @Test
+    public void testPipelinedMatches() {
+        task.setPipelined(true);
+        captures.add("bad", 0x000000);
+        captures.add("bad", 0x000000);
+        captures.add("good", 0xFFFFFF);
+
+        MatchResult result = match(false, 5000);
+
+        assertTrue(result.getAsExpected());
+        assertEquals(Arrays.asList("bad", "good"), getMatchedTitles());
+    }
+
+    @Test
+    public void testPipelinedCaptureIsDiscardedIfMatchSucceeds()
+            throws InterruptedException {
+        task.setPipelined(true);
+        captures.add("good", 0xFFFFFF);
+        captures.add("changed", 0x000000);
+
+        // The first match completes only after the next retry's capture.
+        server.blockMatches();
+        Thread unblocker = new Thread() {
+            public void run() {
+                try {
+                    while (captures.getCapturesCount() < 2) {
+                        Thread.sleep(10);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                server.unblockMatches();
+            }
+        };
+        unblocker.start();
+        MatchResult result = match(false, 5000);
+        unblocker.join();
+
+        assertTrue(result.getAsExpected());
+        assertEquals(Arrays.asList("good"), getMatchedTitles());
+        assertEquals(2, captures.getCapturesCount());
+        // The result has the matched screenshot, not the discarded one.
+        assertEquals(0xFFFFFF,
+                result.getScreenshot().getImage().getRGB(0, 0) & 0xFFFFFF);
+    }
+
+    private MatchResult match(boolean ignoreMismatch, int retryTimeout) {
+        return task.matchWindow(new Trigger[0], null, TestEyes.WHOLE_WINDOW,
+                "tag", false, ignoreMismatch, retryTimeout);
+    }
+
+    private List<String> getMatchedTitles() {
+        List<String> titles = new ArrayList<String>();
+        for (MatchWindowData match : server.getMatches()) {
+            titles.add(match.getAppOutput().getTitle());
+        }
+        return titles;
+    }
+
+    /**
+     * Captures a given sequence of windows, and then the last one of them
+     * indefinitely.
+     */
+    private static class CaptureScript implements AppOutputProvider {
+        private final List<String> titles = new ArrayList<String>();
+        private final List<Integer> colors = new ArrayList<Integer>();
+        private volatile int capturesCount = 0;
+
+        /**
+         * @param title The title of the capture, by which it's matched.
+         * @param color The RGB color of the capture's pixels.
+         */
+        public void add(String title, int color) {
+            titles.add(title);
+            colors.add(color);
+        }
+
+        public AppOutputWithScreenshot getAppOutput(
+                RegionProvider regionProvider, EyesScreenshot lastScreenshot) {
+            int index = Math.min(capturesCount, titles.size() - 1);
+            ++capturesCount;
+            String title = titles.get(index);
+            return new AppOutputWithScreenshot(new AppOutput(title,
+                    title.getBytes(Charset.forName("UTF-8"))),
+                    TestScreenshot.ofColor(colors.get(index)));
+        }
+
+        public int getCapturesCount() {
+            return capturesCount;
+        }
+    }
+}
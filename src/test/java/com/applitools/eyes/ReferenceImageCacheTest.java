@@ -0,0 +1,105 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import com.applitools.utils.ImageDeltaDecompressor;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of compressing the first checkpoint of a test run by the image
+ * uploaded by a previous run, with a stub server which resolves the source
+ * IDs of deltas through the same cache.
+ */
+public class ReferenceImageCacheTest {
+
+    @Test
+    public void testRerunIsCompressedByPreviousRun() throws IOException {
+        ReferenceImageCache cache = new InMemoryReferenceImageCache(10);
+        BufferedImage first = createNoiseImage(200, 100);
+        BufferedImage second = createNoiseImage(200, 100);
+        for (int y = 40; y < 60; ++y) {
+            for (int x = 90; x < 110; ++x) {
+                second.setRGB(x, y, 0xff0000);
+            }
+        }
+
+        byte[] firstUpload = runTest(cache, first);
+        assertNull(ImageDeltaDecompressor.getSourceId(firstUpload));
+        assertFalse(ImageDeltaDecompressor.isCompressedByRawBlocks(
+                firstUpload));
+
+        // A new run, which has no previous screenshot in its session.
+        byte[] secondUpload = runTest(cache, second);
+        assertEquals("window-0",
+                ImageDeltaDecompressor.getSourceId(secondUpload));
+        assertSamePixels(second, ImageDeltaDecompressor.decompress(null,
+                cache, secondUpload));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownSourceIdFails() throws IOException {
+        ReferenceImageCache cache = new InMemoryReferenceImageCache(10);
+        BufferedImage image = createNoiseImage(200, 100);
+        runTest(cache, image);
+        byte[] upload = runTest(cache, image);
+
+        ImageDeltaDecompressor.decompress(null,
+                new InMemoryReferenceImageCache(10), upload);
+    }
+
+    /**
+     * Runs a test of a single checkpoint.
+     * @return The uploaded screenshot.
+     */
+    private static byte[] runTest(ReferenceImageCache cache,
+                                  BufferedImage image) {
+        TestEyes eyes = new TestEyes();
+        eyes.setReferenceImageCache(cache);
+        eyes.setImage(image);
+        eyes.openBase("app", "test", null);
+        try {
+            eyes.checkWindowBase(TestEyes.WHOLE_WINDOW, "step", false, 0);
+            eyes.close();
+        } finally {
+            eyes.abortIfNotClosed();
+        }
+        return eyes.getServer().getScreenshots().get(0);
+    }
+
+    /**
+     * @return An image of random pixels (the same ones on each call), which
+     * doesn't encode much smaller than its raw size.
+     */
+    private static BufferedImage createNoiseImage(int width, int height) {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static void assertSamePixels(BufferedImage expected,
+                                         BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        assertArrayEquals(
+                expected.getRGB(0, 0, width, height, null, 0, width),
+                actual.getRGB(0, 0, width, height, null, 0, width));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the delays and match decisions of the built in {@link
+ * RetryPolicy} implementations.
+ */
+public class RetryPolicyTest {
+
+    @Test
+    public void testDefault() {
+        for (int retry = 0; retry < 10; ++retry) {
+            assertEquals(500, RetryPolicy.DEFAULT.getDelay(retry));
+        }
+        assertTrue(RetryPolicy.DEFAULT.shouldMatch(true));
+        assertTrue(RetryPolicy.DEFAULT.shouldMatch(false));
+    }
+
+    @Test
+    public void testFixed() {
+        RetryPolicy policy = RetryPolicy.fixed(100);
+        for (int retry = 0; retry < 10; ++retry) {
+            assertEquals(100, policy.getDelay(retry));
+        }
+        assertTrue(policy.shouldMatch(true));
+        assertTrue(policy.shouldMatch(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFixedRejectsZeroInterval() {
+        RetryPolicy.fixed(0);
+    }
+
+    @Test
+    public void testExponential() {
+        RetryPolicy policy = RetryPolicy.exponential(50, 2, 1000);
+        int[] delays = {50, 100, 200, 400, 800, 1000, 1000};
+        for (int retry = 0; retry < delays.length; ++retry) {
+            assertEquals("Retry " + retry, delays[retry],
+                    policy.getDelay(retry));
+        }
+        // Growing past the range of doubles still stays at the maximum.
+        assertEquals(1000, policy.getDelay(Integer.MAX_VALUE));
+        assertTrue(policy.shouldMatch(true));
+        assertTrue(policy.shouldMatch(false));
+
+        RetryPolicy constant = RetryPolicy.exponential(50, 1, 1000);
+        assertEquals(50, constant.getDelay(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExponentialRejectsShrinkingFactor() {
+        RetryPolicy.exponential(50, 0.5, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExponentialRejectsMaxDelayBelowInitialDelay() {
+        RetryPolicy.exponential(50, 2, 40);
+    }
+
+    @Test
+    public void testChangeTriggered() {
+        RetryPolicy policy = RetryPolicy.changeTriggered(30);
+        for (int retry = 0; retry < 10; ++retry) {
+            assertEquals(30, policy.getDelay(retry));
+        }
+        // Only captures which settled are matched.
+        assertFalse(policy.shouldMatch(true));
+        assertTrue(policy.shouldMatch(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testChangeTriggeredRejectsZeroInterval() {
+        RetryPolicy.changeTriggered(0);
+    }
+}
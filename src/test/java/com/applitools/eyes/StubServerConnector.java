@@ -0,0 +1,158 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A server connector which matches windows in memory, without a server.
+ * Windows whose tag starts with "mismatch" mismatch, and matching windows
+ * whose tag starts with "fail" fails. Matches can be blocked, to keep
+ * checkpoints pending.
+ */
+class StubServerConnector extends ServerConnector {
+
+    private final List<MatchWindowData> matches;
+    private final List<byte[]> screenshots;
+    private final Semaphore matchPermits;
+    private volatile boolean isAborted;
+    private volatile int stoppedSessionsCount;
+    private volatile int completedMatchesCount;
+
+    public StubServerConnector() {
+        super(new Logger(), "stub", URI.create("http://localhost/"));
+
+        matches = new ArrayList<MatchWindowData>();
+        screenshots = new ArrayList<byte[]>();
+        matchPermits = new Semaphore(Integer.MAX_VALUE);
+        isAborted = false;
+        stoppedSessionsCount = 0;
+        completedMatchesCount = 0;
+    }
+
+    @Override
+    public RunningSession startSession(SessionStartInfo sessionStartInfo) {
+        RunningSession runningSession = new RunningSession();
+        runningSession.setId("session");
+        runningSession.setUrl("http://localhost/session");
+        return runningSession;
+    }
+
+    @Override
+    public TestResults stopSession(RunningSession runningSession,
+                                   boolean isAborted, boolean save) {
+        this.isAborted = isAborted;
+        ++stoppedSessionsCount;
+        return new TestResults();
+    }
+
+    @Override
+    public MatchResult matchWindow(RunningSession runningSession,
+                                   MatchWindowData matchData) {
+        int index;
+        synchronized (matches) {
+            index = matches.size();
+            matches.add(matchData);
+        }
+        matchPermits.acquireUninterruptibly();
+        try {
+            // Writes the screenshot, as the request would.
+            ByteArrayOutputStream screenshot = new ByteArrayOutputStream();
+            matchData.getAppOutput().getScreenshot().writeTo(screenshot);
+            synchronized (screenshots) {
+                screenshots.add(screenshot.toByteArray());
+            }
+            return getResult(matchData, index);
+        } catch (IOException e) {
+            throw new EyesException("Failed to write screenshot!", e);
+        } finally {
+            ++completedMatchesCount;
+        }
+    }
+
+    /**
+     * @param matchData The match's data.
+     * @param index The index of the match, from the first one.
+     * @return The result of the match.
+     */
+    protected MatchResult getResult(MatchWindowData matchData, int index) {
+        String tag = matchData.getTag();
+        if (tag.startsWith("fail")) {
+            throw new EyesException("Match failed: " + tag);
+        }
+
+        MatchResult result = new MatchResult();
+        result.setAsExpected(!tag.startsWith("mismatch"));
+        result.setWindowId("window-" + index);
+        return result;
+    }
+
+    /**
+     * Makes matches wait until {@link #unblockMatches()} is called. Matches
+     * are recorded before they wait.
+     */
+    public void blockMatches() {
+        matchPermits.drainPermits();
+    }
+
+    public void unblockMatches() {
+        matchPermits.release(Integer.MAX_VALUE - matchPermits
+                .availablePermits());
+    }
+
+    /**
+     * @return The data of the matches so far, in order.
+     */
+    public List<MatchWindowData> getMatches() {
+        synchronized (matches) {
+            return new ArrayList<MatchWindowData>(matches);
+        }
+    }
+
+    /**
+     * @return The screenshots uploaded by the completed matches, in order.
+     */
+    public List<byte[]> getScreenshots() {
+        synchronized (screenshots) {
+            return new ArrayList<byte[]>(screenshots);
+        }
+    }
+
+    /**
+     * @return The tags of the matches so far, in order.
+     */
+    public List<String> getMatchedTags() {
+        List<String> tags = new ArrayList<String>();
+        for (MatchWindowData match : getMatches()) {
+            tags.add(match.getTag());
+        }
+        return tags;
+    }
+
+    /**
+     * Waits until the given number of matches have started.
+     */
+    public void awaitMatches(int count) throws InterruptedException {
+        while (getMatches().size() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    public boolean getIsAborted() {
+        return isAborted;
+    }
+
+    public int getCompletedMatchesCount() {
+        return completedMatchesCount;
+    }
+
+    public int getStoppedSessionsCount() {
+        return stoppedSessionsCount;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+
+/**
+ * Eyes which capture a given image, and match it by a stub server
+ * connector.
+ */
+class TestEyes extends EyesBase {
+
+    public static final RegionProvider WHOLE_WINDOW = new RegionProvider() {
+        public Region getRegion() {
+            return Region.EMPTY;
+        }
+
+        public CoordinatesType getCoordinatesType() {
+            return CoordinatesType.SCREENSHOT_AS_IS;
+        }
+    };
+
+    private volatile BufferedImage image;
+
+    public TestEyes() {
+        super(URI.create("http://localhost/"));
+        serverConnector = new StubServerConnector();
+        setApiKey("key");
+        image = TestScreenshot.ofColor(0x336699).getImage();
+    }
+
+    public StubServerConnector getServer() {
+        return (StubServerConnector) serverConnector;
+    }
+
+    /**
+     * @param image The image the next screenshots capture.
+     */
+    public void setImage(BufferedImage image) {
+        this.image = image;
+    }
+
+    @Override
+    protected String getBaseAgentId() {
+        return "test";
+    }
+
+    @Override
+    protected RectangleSize getViewportSize() {
+        return new RectangleSize(image.getWidth(), image.getHeight());
+    }
+
+    @Override
+    protected void setViewportSize(RectangleSize size) {
+    }
+
+    @Override
+    protected String getInferredEnvironment() {
+        return null;
+    }
+
+    @Override
+    protected EyesScreenshot getScreenshot() {
+        return new TestScreenshot(image);
+    }
+
+    @Override
+    protected String getTitle() {
+        return "title";
+    }
+}
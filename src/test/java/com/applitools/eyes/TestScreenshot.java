@@ -0,0 +1,57 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.eyes;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A screenshot of a whole window, whose coordinates are all "as is".
+ */
+class TestScreenshot extends EyesScreenshot {
+
+    public TestScreenshot(BufferedImage image) {
+        super(image);
+    }
+
+    @Override
+    public EyesScreenshot getSubScreenshot(Region region,
+            CoordinatesType coordinatesType, boolean throwIfClipped) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected Location convertLocation(Location location,
+                                       CoordinatesType from,
+                                       CoordinatesType to) {
+        return new Location(location);
+    }
+
+    @Override
+    public Location getLocationInScreenshot(Location location,
+            CoordinatesType coordinatesType) {
+        return new Location(location);
+    }
+
+    @Override
+    protected Region getIntersectedRegion(Region region,
+            CoordinatesType originalCoordinatesType,
+            CoordinatesType resultCoordinatesType) {
+        return new Region(region);
+    }
+
+    /**
+     * @param color The RGB color of the screenshot's pixels.
+     * @return A screenshot of the given color.
+     */
+    public static TestScreenshot ofColor(int color) {
+        BufferedImage image = new BufferedImage(40, 30,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); ++y) {
+            for (int x = 0; x < image.getWidth(); ++x) {
+                image.setRGB(x, y, color);
+            }
+        }
+        return new TestScreenshot(image);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of {@link ImageDeltaCompressor} through {@link
+ * ImageDeltaDecompressor}, using the compression fixtures.
+ */
+public class ImageDeltaCompressorTest {
+
+    private static BufferedImage source;
+    private static BufferedImage target;
+    private static byte[] targetEncoded;
+
+    @BeforeClass
+    public static void readFixtures() throws IOException {
+        source = ImageIO.read(getResource("compression-source.png"));
+        targetEncoded = readResource("compression-target.png");
+        target = ImageUtils.imageFromBytes(targetEncoded);
+    }
+
+    @Test
+    public void testCompressionReproducesTarget() throws IOException {
+        for (int blockSize : new int[]{1, 3, 10, 20, 1024}) {
+            byte[] compressed = ImageDeltaCompressor.compressByRawBlocks(
+                    target, targetEncoded, source, blockSize);
+
+            assertSamePixels("Block size " + blockSize, target,
+                    ImageDeltaDecompressor.decompress(source, compressed));
+        }
+    }
+
+    @Test
+    public void testParallelCompressionReproducesTarget() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            byte[] compressed = ImageDeltaCompressor.compressByRawBlocks(
+                    target, targetEncoded, source, 10, executor, 4);
+
+            assertSamePixels("Parallel", target,
+                    ImageDeltaDecompressor.decompress(source, compressed));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamingCompressionReproducesTarget()
+            throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        boolean isDelta = ImageDeltaCompressor.compressByRawBlocks(target,
+                targetEncoded, source, 10, null, 1, compressed);
+
+        assertTrue("Expected a delta", isDelta);
+        assertSamePixels("Streaming", target,
+                ImageDeltaDecompressor.decompress(source,
+                        compressed.toByteArray()));
+    }
+
+    @Test
+    public void testDeltaWithoutEncodedTargetIsWrittenInFull()
+            throws IOException {
+        // A blank source, so the delta is estimated to be larger than the
+        // PNG, which isn't there to fall back to.
+        BufferedImage blank = new BufferedImage(target.getWidth(),
+                target.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        DirtyBlockMap dirtyBlocks = ImageDeltaCompressor.findDirtyBlocks(
+                ImageUtils.normalize(target), blank, 10);
+        assertEquals(CompressionDecision.ENCODED,
+                dirtyBlocks.decide(targetEncoded.length));
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        boolean isDelta = ImageDeltaCompressor.compressByRawBlocks(
+                dirtyBlocks, null, null, CompressionProfile.FASTEST, null, 1,
+                compressed);
+
+        assertTrue("Expected a delta", isDelta);
+        assertSamePixels("Without PNG", target,
+                ImageDeltaDecompressor.decompress(blank,
+                        compressed.toByteArray()));
+    }
+
+    @Test
+    public void testBlockSize10MatchesExpectedResult() throws IOException {
+        byte[] expected = readResource("compression-block-size-10-result.bin");
+        byte[] compressed = ImageDeltaCompressor.compressByRawBlocks(target,
+                targetEncoded, source, 10);
+
+        assertArrayEquals("Block size 10", expected, compressed);
+        assertSamePixels("Expected result", target,
+                ImageDeltaDecompressor.decompress(source, expected));
+    }
+
+    @Test
+    public void testCompressedLengthBounds() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BufferedImage normalizedTarget = ImageUtils.normalize(target);
+            for (int blockSize : new int[]{1, 10, 64}) {
+                DirtyBlockMap dirtyBlocks =
+                        ImageDeltaCompressor.findDirtyBlocks(normalizedTarget,
+                                ImageUtils.normalize(source), blockSize);
+                for (ExecutorService executorService :
+                        new ExecutorService[]{null, executor}) {
+                    ByteArrayOutputStream compressed =
+                            new ByteArrayOutputStream();
+                    boolean isDelta = ImageDeltaCompressor.compressByRawBlocks(
+                            dirtyBlocks, "source", targetEncoded,
+                            CompressionProfile.FASTEST, executorService, 4,
+                            compressed);
+
+                    assertTrue("Block size " + blockSize, !isDelta
+                            || compressed.size() <= ImageDeltaCompressor
+                                    .getMaxCompressedLength(dirtyBlocks,
+                                            "source", executorService, 4));
+                }
+            }
+
+            DirtyBlockMap dirtyBlocks = ImageDeltaCompressor.findDirtyBlocks(
+                    normalizedTarget, normalizedTarget, 10);
+            for (CompressionProfile profile : new CompressionProfile[]{
+                    CompressionProfile.FASTEST, CompressionProfile.BALANCED,
+                    CompressionProfile.SMALLEST}) {
+                assertTrue(profile.toString(), ImageUtils.encodeAsPng(
+                        normalizedTarget, profile).length
+                        >= dirtyBlocks.getMinEncodedLength());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertSamePixels(String message,
+            BufferedImage expected, BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(message + ": width", width, actual.getWidth());
+        assertEquals(message + ": height", height, actual.getHeight());
+        assertArrayEquals(message + ": pixels",
+                expected.getRGB(0, 0, width, height, null, 0, width),
+                actual.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    private static InputStream getResource(String name) {
+        InputStream stream =
+                ImageDeltaCompressorTest.class.getResourceAsStream("/" + name);
+        if (stream == null) {
+            throw new IllegalStateException("Missing resource: " + name);
+        }
+        return stream;
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream stream = getResource(name);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, length);
+            }
+            return bytes.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
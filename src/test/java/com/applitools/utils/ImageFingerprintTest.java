@@ -0,0 +1,175 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of counting the tiles which differ between images by their
+ * fingerprints.
+ */
+public class ImageFingerprintTest {
+
+    private static final int[] TYPES = {BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_USHORT_565_RGB};
+
+    @Test
+    public void testIdenticalImagesMatch() {
+        for (int type : TYPES) {
+            ImageFingerprint fingerprint =
+                    ImageFingerprint.of(createImage(150, 100, type));
+
+            assertTrue("Type " + type, fingerprint.matches(
+                    ImageFingerprint.of(createImage(150, 100, type))));
+            assertEquals("Type " + type, 6, fingerprint.getTilesCount());
+        }
+    }
+
+    @Test
+    public void testChangedTilesCount() {
+        for (int type : TYPES) {
+            BufferedImage image = createImage(150, 100, type);
+            ImageFingerprint fingerprint = ImageFingerprint.of(image);
+
+            // Two pixels of the first tile.
+            BufferedImage changed = createImage(150, 100, type);
+            invert(changed, 0, 0);
+            invert(changed, 63, 63);
+            assertEquals("Type " + type, 1,
+                    fingerprint.getChangedTilesCount(
+                            ImageFingerprint.of(changed)));
+
+            // The last pixel, in the partial tile at the bottom right.
+            invert(changed, 149, 99);
+            assertEquals("Type " + type, 2,
+                    fingerprint.getChangedTilesCount(
+                            ImageFingerprint.of(changed)));
+            assertFalse("Type " + type,
+                    fingerprint.matches(ImageFingerprint.of(changed)));
+        }
+    }
+
+    @Test
+    public void testIncomparableFingerprints() {
+        BufferedImage image = createImage(150, 100,
+                BufferedImage.TYPE_3BYTE_BGR);
+        ImageFingerprint fingerprint = ImageFingerprint.of(image);
+
+        assertEquals(6, fingerprint.getChangedTilesCount(null));
+        assertEquals(6, fingerprint.getChangedTilesCount(ImageFingerprint.of(
+                createImage(150, 101, BufferedImage.TYPE_3BYTE_BGR))));
+        assertEquals(6, fingerprint.getChangedTilesCount(
+                ImageFingerprint.of(image, 32)));
+        assertFalse(fingerprint.matches(null));
+    }
+
+    @Test
+    public void testSubImages() {
+        for (int type : TYPES) {
+            BufferedImage image = createImage(150, 100, type);
+            BufferedImage subImage = image.getSubimage(13, 7, 100, 80);
+            BufferedImage copy = new BufferedImage(100, 80, type);
+            copy.getGraphics().drawImage(subImage, 0, 0, null);
+
+            ImageFingerprint fingerprint = ImageFingerprint.of(subImage);
+            assertTrue("Type " + type,
+                    fingerprint.matches(ImageFingerprint.of(copy)));
+
+            // Pixels outside of the sub image don't count.
+            invert(image, 12, 7);
+            invert(image, 113, 86);
+            assertTrue("Type " + type, fingerprint.matches(
+                    ImageFingerprint.of(image.getSubimage(13, 7, 100, 80))));
+
+            // The sub image's last pixel does.
+            invert(image, 112, 86);
+            assertEquals("Type " + type, 1, fingerprint.getChangedTilesCount(
+                    ImageFingerprint.of(image.getSubimage(13, 7, 100, 80))));
+        }
+    }
+
+    @Test
+    public void testIntPixelsUnusedBitsAreIgnored() {
+        BufferedImage image = createImage(150, 100,
+                BufferedImage.TYPE_INT_RGB);
+        BufferedImage dirty = createImage(150, 100,
+                BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) dirty.getRaster().getDataBuffer())
+                .getData();
+        for (int i = 0; i < data.length; ++i) {
+            data[i] |= 0xFF000000;
+        }
+
+        assertTrue(ImageFingerprint.of(image).matches(
+                ImageFingerprint.of(dirty)));
+
+        // But not the ones of the alpha channel.
+        BufferedImage opaque = createImage(150, 100,
+                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage translucent = createImage(150, 100,
+                BufferedImage.TYPE_INT_ARGB);
+        translucent.setRGB(75, 50, translucent.getRGB(75, 50) ^ 0x01000000);
+        assertEquals(1, ImageFingerprint.of(opaque).getChangedTilesCount(
+                ImageFingerprint.of(translucent)));
+    }
+
+    @Test
+    public void testPaletteImagesAreHashedByColor() {
+        byte[] reds = {0, (byte) 0xFF};
+        byte[] greens = {0, 0};
+        byte[] blues = {0, 0};
+        IndexColorModel blackAndRed = new IndexColorModel(8, 2, reds,
+                greens, blues);
+        IndexColorModel blackAndBlue = new IndexColorModel(8, 2, blues,
+                greens, reds);
+        BufferedImage red = new BufferedImage(150, 100,
+                BufferedImage.TYPE_BYTE_INDEXED, blackAndRed);
+        BufferedImage blue = new BufferedImage(150, 100,
+                BufferedImage.TYPE_BYTE_INDEXED, blackAndBlue);
+        BufferedImage bgr = new BufferedImage(150, 100,
+                BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < 100; ++y) {
+            for (int x = 0; x < 150; ++x) {
+                // The same indices in both images.
+                int index = (x + y) % 2;
+                red.getRaster().setSample(x, y, 0, index);
+                blue.getRaster().setSample(x, y, 0, index);
+                bgr.setRGB(x, y, red.getRGB(x, y));
+            }
+        }
+
+        ImageFingerprint fingerprint = ImageFingerprint.of(red);
+        assertFalse(fingerprint.matches(ImageFingerprint.of(blue)));
+        assertTrue(fingerprint.matches(ImageFingerprint.of(bgr)));
+    }
+
+    /**
+     * @return An image of random pixels (the same ones for the same size).
+     */
+    private static BufferedImage createImage(int width, int height,
+                                             int type) {
+        Random random = new Random(width * 31 + height);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                image.setRGB(x, y, random.nextInt() | 0xFF000000);
+            }
+        }
+        return image;
+    }
+
+    private static void invert(BufferedImage image, int x, int y) {
+        image.setRGB(x, y, image.getRGB(x, y) ^ 0x00FFFFFF);
+    }
+}
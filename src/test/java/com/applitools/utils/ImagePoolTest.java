@@ -0,0 +1,114 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import com.applitools.eyes.Region;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of {@link ImagePool}, and of the image parts taken from it by
+ * {@link ImageUtils#getImagePart(BufferedImage, Region, ImagePool)}.
+ */
+public class ImagePoolTest {
+
+    @Test
+    public void testReleasedImageIsReused() {
+        ImagePool pool = new ImagePool(2);
+        BufferedImage image = pool.acquire(10, 5,
+                BufferedImage.TYPE_3BYTE_BGR);
+        pool.release(image);
+        pool.release(image);
+
+        assertEquals(1, pool.getImagesCount());
+        assertSame(image, pool.acquire(10, 5, BufferedImage.TYPE_3BYTE_BGR));
+        assertEquals(0, pool.getImagesCount());
+    }
+
+    @Test
+    public void testIndexedImagesAreNotPooled() {
+        ImagePool pool = new ImagePool(2);
+        for (int type : new int[]{BufferedImage.TYPE_BYTE_INDEXED,
+                BufferedImage.TYPE_BYTE_BINARY}) {
+            pool.release(createPaletteImage(type));
+        }
+
+        assertEquals(0, pool.getImagesCount());
+    }
+
+    @Test
+    public void testImagePartOfIndexedImageKeepsPalette() {
+        ImagePool pool = new ImagePool(2);
+        for (int type : new int[]{BufferedImage.TYPE_BYTE_INDEXED,
+                BufferedImage.TYPE_BYTE_BINARY}) {
+            BufferedImage image = createPaletteImage(type);
+            // A pooled image of the same size and type, with the default
+            // palette, must not be used for the part.
+            pool.release(pool.acquire(4, 3, type));
+
+            BufferedImage part = ImageUtils.getImagePart(image,
+                    new Region(2, 1, 4, 3), pool);
+
+            assertNotSame(image.getRaster(), part.getRaster());
+            assertSame(image.getColorModel(), part.getColorModel());
+            assertArrayEquals("Type " + type,
+                    image.getRGB(2, 1, 4, 3, null, 0, 4),
+                    part.getRGB(0, 0, 4, 3, null, 0, 4));
+        }
+    }
+
+    @Test
+    public void testImagePartIsTakenFromPool() {
+        ImagePool pool = new ImagePool(2);
+        BufferedImage image = new BufferedImage(8, 6,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 6; ++y) {
+            for (int x = 0; x < 8; ++x) {
+                image.setRGB(x, y, x * 0x102030 + y * 0x050403);
+            }
+        }
+        BufferedImage pooled = pool.acquire(4, 3, BufferedImage.TYPE_INT_RGB);
+        pool.release(pooled);
+
+        BufferedImage part = ImageUtils.getImagePart(image,
+                new Region(2, 1, 4, 3), pool);
+
+        assertSame(pooled, part);
+        assertArrayEquals(image.getRGB(2, 1, 4, 3, null, 0, 4),
+                part.getRGB(0, 0, 4, 3, null, 0, 4));
+    }
+
+    /**
+     * @return An image with a palette of its own, which differs from the
+     * default palette of its type, with every pixel value in use.
+     */
+    private static BufferedImage createPaletteImage(int type) {
+        int bits = (type == BufferedImage.TYPE_BYTE_BINARY) ? 1 : 8;
+        int size = 1 << bits;
+        byte[] reds = new byte[size];
+        byte[] greens = new byte[size];
+        byte[] blues = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            reds[i] = (byte) (255 - i);
+            greens[i] = (byte) (i * 7);
+            blues[i] = (byte) (0x80 ^ i);
+        }
+        IndexColorModel colorModel = new IndexColorModel(bits, size, reds,
+                greens, blues);
+        BufferedImage image = new BufferedImage(8, 6, type, colorModel);
+        for (int y = 0; y < 6; ++y) {
+            for (int x = 0; x < 8; ++x) {
+                image.getRaster().setSample(x, y, 0, (x + y * 8) % size);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of rotating images by right angles, against rotating them pixel by
+ * pixel.
+ */
+public class ImageRotatorTest {
+
+    private static final int[] TYPES = {
+            // Byte interleaved rasters.
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_BYTE_INDEXED,
+            // Int packed rasters.
+            BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_INT_BGR,
+            // Other rasters.
+            BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_BINARY};
+
+    @Test
+    public void testGetQuarterTurns() {
+        assertEquals(0, ImageRotator.getQuarterTurns(0));
+        assertEquals(1, ImageRotator.getQuarterTurns(90));
+        assertEquals(2, ImageRotator.getQuarterTurns(180));
+        assertEquals(3, ImageRotator.getQuarterTurns(270));
+        assertEquals(0, ImageRotator.getQuarterTurns(360));
+        assertEquals(1, ImageRotator.getQuarterTurns(450));
+        assertEquals(3, ImageRotator.getQuarterTurns(-90));
+        assertEquals(2, ImageRotator.getQuarterTurns(-180));
+        assertEquals(-1, ImageRotator.getQuarterTurns(45));
+        assertEquals(-1, ImageRotator.getQuarterTurns(90.5));
+        assertEquals(-1, ImageRotator.getQuarterTurns(
+                Double.POSITIVE_INFINITY));
+        assertEquals(-1, ImageRotator.getQuarterTurns(Double.NaN));
+    }
+
+    @Test
+    public void testRotate() {
+        for (int type : TYPES) {
+            // Wider than a tile, and not a multiple of it.
+            BufferedImage image = createImage(45, 70, type);
+            for (int quarterTurns = 0; quarterTurns < 4; ++quarterTurns) {
+                assertRotated("Type " + type, image, quarterTurns,
+                        ImageRotator.rotate(image, quarterTurns, null, 1));
+            }
+        }
+    }
+
+    @Test
+    public void testRotateSubImage() {
+        for (int type : TYPES) {
+            BufferedImage image = createImage(45, 70, type)
+                    .getSubimage(3, 5, 37, 41);
+            for (int quarterTurns = 0; quarterTurns < 4; ++quarterTurns) {
+                assertRotated("Type " + type, image, quarterTurns,
+                        ImageRotator.rotate(image, quarterTurns, null, 1));
+            }
+        }
+    }
+
+    @Test
+    public void testRotateInBands() {
+        ExecutorService executorService = Executors.newFixedThreadPool(3);
+        try {
+            for (int type : TYPES) {
+                BufferedImage image = createImage(45, 70, type)
+                        .getSubimage(1, 2, 40, 60);
+                for (int quarterTurns = 0; quarterTurns < 4;
+                        ++quarterTurns) {
+                    // Includes more bands than rows.
+                    for (int bandsCount : new int[] {2, 7, 100}) {
+                        assertRotated(String.format("Type %d, %d bands",
+                                type, bandsCount), image, quarterTurns,
+                                ImageRotator.rotate(image, quarterTurns,
+                                        executorService, bandsCount));
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testRotateImageByRightAngles() {
+        BufferedImage image = createImage(45, 70, BufferedImage.TYPE_INT_RGB);
+        double[] degrees = {90, 180, 270, -90, 360};
+        int[] quarterTurns = {1, 2, 3, 3, 0};
+        for (int i = 0; i < degrees.length; ++i) {
+            assertRotated(degrees[i] + " degrees", image, quarterTurns[i],
+                    ImageUtils.rotateImage(image, degrees[i]));
+        }
+    }
+
+    /**
+     * @return An image of random pixels (the same ones for the same size).
+     */
+    private static BufferedImage createImage(int width, int height,
+                                             int type) {
+        Random random = new Random(width * 31 + height);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Asserts that {@code rotated} is {@code image} rotated clockwise by
+     * {@code quarterTurns}, pixel by pixel.
+     */
+    private static void assertRotated(String message, BufferedImage image,
+                                      int quarterTurns,
+                                      BufferedImage rotated) {
+        message += ", " + quarterTurns + " quarter turns";
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean isSideways = (quarterTurns % 2) == 1;
+        assertEquals(message + ": width", isSideways ? height : width,
+                rotated.getWidth());
+        assertEquals(message + ": height", isSideways ? width : height,
+                rotated.getHeight());
+        assertSame(message + ": color model", image.getColorModel(),
+                rotated.getColorModel());
+
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int rotatedX;
+                int rotatedY;
+                switch (quarterTurns) {
+                    case 0:
+                        rotatedX = x;
+                        rotatedY = y;
+                        break;
+                    case 1:
+                        rotatedX = height - 1 - y;
+                        rotatedY = x;
+                        break;
+                    case 2:
+                        rotatedX = width - 1 - x;
+                        rotatedY = height - 1 - y;
+                        break;
+                    default:
+                        rotatedX = y;
+                        rotatedY = width - 1 - x;
+                        break;
+                }
+                if (image.getRGB(x, y)
+                        != rotated.getRGB(rotatedX, rotatedY)) {
+                    assertEquals(String.format("%s: pixel (%d, %d)",
+                            message, x, y), image.getRGB(x, y),
+                            rotated.getRGB(rotatedX, rotatedY));
+                }
+            }
+        }
+    }
+}
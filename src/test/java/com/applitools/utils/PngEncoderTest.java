@@ -0,0 +1,214 @@
+/*
+ * Applitools SDK for Selenium integration.
+ */
+package com.applitools.utils;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Round trips of images encoded by {@link PngEncoder} through {@link
+ * ImageIO}.
+ */
+public class PngEncoderTest {
+
+    // Types whose rasters are read directly.
+    private static final int[] DIRECT_TYPES = {BufferedImage.TYPE_3BYTE_BGR,
+            BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR};
+    // Types whose pixels are read through getRGB.
+    private static final int[] FALLBACK_TYPES = {
+            BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_4BYTE_ABGR_PRE,
+            BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_GRAY,
+            BufferedImage.TYPE_BYTE_INDEXED};
+    private static final CompressionProfile[] PROFILES = {
+            CompressionProfile.FASTEST, CompressionProfile.BALANCED,
+            CompressionProfile.SMALLEST};
+
+    @Test
+    public void testDirectTypesRoundTrip() throws IOException {
+        for (int type : DIRECT_TYPES) {
+            BufferedImage image = createImage(61, 37, type);
+            for (CompressionProfile profile : PROFILES) {
+                assertRoundTrip("Type " + type + ", " + profile, image,
+                        profile);
+            }
+        }
+    }
+
+    @Test
+    public void testFallbackTypesRoundTrip() throws IOException {
+        for (int type : FALLBACK_TYPES) {
+            assertRoundTrip("Type " + type, createImage(61, 37, type),
+                    CompressionProfile.BALANCED);
+        }
+    }
+
+    @Test
+    public void testSubImagesRoundTrip() throws IOException {
+        for (int type : DIRECT_TYPES) {
+            BufferedImage image = createImage(61, 37, type);
+            assertRoundTrip("Type " + type,
+                    image.getSubimage(5, 3, 40, 30),
+                    CompressionProfile.BALANCED);
+            // A sub image of a single column, at the parent's last column.
+            assertRoundTrip("Type " + type + ", last column",
+                    image.getSubimage(60, 0, 1, 37),
+                    CompressionProfile.BALANCED);
+        }
+    }
+
+    @Test
+    public void testThinImagesRoundTrip() throws IOException {
+        int[][] sizes = {{1, 1}, {1, 23}, {23, 1}};
+        for (int type : DIRECT_TYPES) {
+            for (int[] size : sizes) {
+                for (CompressionProfile profile : PROFILES) {
+                    assertRoundTrip(String.format("Type %d, %dx%d, %s", type,
+                            size[0], size[1], profile),
+                            createImage(size[0], size[1], type), profile);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParallelEncodingRoundTrip() throws IOException {
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            // Includes more bands than rows, and rows of more than 32KB, by
+            // which every band's deflater is primed.
+            int[][] sizes = {{61, 37}, {3000, 20}};
+            int[] bandCounts = {1, 2, 3, 7, 20, 37, 100};
+            for (int type : new int[] {BufferedImage.TYPE_INT_RGB,
+                    BufferedImage.TYPE_4BYTE_ABGR}) {
+                for (int[] size : sizes) {
+                    BufferedImage image = createImage(size[0], size[1], type);
+                    for (int bandsCount : bandCounts) {
+                        for (CompressionProfile profile : PROFILES) {
+                            assertDecodesTo(String.format(
+                                    "Type %d, %dx%d, %d bands, %s", type,
+                                    size[0], size[1], bandsCount, profile),
+                                    image, encodeParallel(image, profile,
+                                            executorService, bandsCount));
+                        }
+                    }
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        Random random = new Random(1);
+        // Includes lengths above the Adler-32 modulus, and bytes of 0xFF,
+        // which grow the sums the fastest.
+        int[] lengths = {0, 1, 2, 100, 5552, 65521, 65522, 200000};
+        for (int length1 : lengths) {
+            for (int length2 : lengths) {
+                for (boolean isFull : new boolean[] {false, true}) {
+                    byte[] buffer1 = createBuffer(random, length1, isFull);
+                    byte[] buffer2 = createBuffer(random, length2, isFull);
+                    Adler32 adler1 = new Adler32();
+                    adler1.update(buffer1);
+                    Adler32 adler2 = new Adler32();
+                    adler2.update(buffer2);
+                    Adler32 expected = new Adler32();
+                    expected.update(buffer1);
+                    expected.update(buffer2);
+
+                    assertEquals(String.format("%d + %d bytes", length1,
+                            length2), expected.getValue(),
+                            PngEncoder.combineAdler32(adler1.getValue(),
+                                    adler2.getValue(), length2));
+                }
+            }
+        }
+    }
+
+    private static byte[] encodeParallel(BufferedImage image,
+            CompressionProfile profile, ExecutorService executorService,
+            int parallelism) throws IOException {
+        PngEncoder encoder = new PngEncoder();
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            encoder.encode(image, profile, executorService, parallelism,
+                    outputStream);
+            return outputStream.toByteArray();
+        } finally {
+            encoder.end();
+        }
+    }
+
+    private static byte[] createBuffer(Random random, int length,
+            boolean isFull) {
+        byte[] buffer = new byte[length];
+        if (isFull) {
+            Arrays.fill(buffer, (byte) 0xFF);
+        } else {
+            random.nextBytes(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return An image of random pixels (the same ones for the same size),
+     * with repeated runs, so rows are filtered differently.
+     */
+    static BufferedImage createImage(int width, int height, int type) {
+        Random random = new Random(width * 31 + height);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; ++y) {
+            int argb = random.nextInt();
+            for (int x = 0; x < width; ++x) {
+                if (random.nextInt(4) == 0) {
+                    argb = random.nextInt();
+                }
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+    static void assertRoundTrip(String message, BufferedImage image,
+            CompressionProfile profile) throws IOException {
+        PngEncoder encoder = new PngEncoder();
+        try {
+            assertDecodesTo(message, image, encoder.encode(image, profile));
+        } finally {
+            encoder.end();
+        }
+    }
+
+    static void assertDecodesTo(String message, BufferedImage expected,
+            byte[] png) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull(message + ": decoded", decoded);
+
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(message + ": width", width, decoded.getWidth());
+        assertEquals(message + ": height", height, decoded.getHeight());
+        assertEquals(message + ": alpha", expected.getColorModel().hasAlpha(),
+                decoded.getColorModel().hasAlpha());
+        assertArrayEquals(message + ": pixels",
+                expected.getRGB(0, 0, width, height, null, 0, width),
+                decoded.getRGB(0, 0, width, height, null, 0, width));
+    }
+}